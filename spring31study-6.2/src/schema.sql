@@ -0,0 +1,37 @@
+-- springbook 스키마 (MySQL)
+
+create table users (
+	-- ShardedUserDao가 id를 String.compareTo()로 비교하므로 id는 바이너리 정렬로 둔다. (대소문자를 구분한다)
+	id varchar(10) character set utf8 collate utf8_bin not null,
+	name varchar(20) not null,
+	password varchar(10) not null,
+	email varchar(40),
+	level tinyint not null,
+	login int not null,
+	recommend int not null,
+	upgrade_run varchar(36),	-- 마지막으로 레벨을 올린 일괄 업그레이드 실행 id
+	version bigint not null default 1,	-- 등록하면 1, 바뀔 때마다 1씩 늘어난다.
+	updated_at bigint not null default 0,	-- 마지막으로 등록되거나 바뀐 시각(ms)
+	primary key (id),
+	-- UserDaoJdbc.getUpgradeCandidates()의 레벨별 조건을 범위 검색으로 처리한다.
+	key idx_users_level_login (level, login),
+	key idx_users_level_recommend (level, recommend),
+	key idx_users_upgrade_run (upgrade_run),
+	-- UserDaoJdbc.getChangedSince()가 updated_at 순으로 바뀐 사용자를 읽는다.
+	key idx_users_updated_at (updated_at)
+) engine=InnoDB default charset=utf8;
+
+-- 이미 만들어진 users 테이블에는 아래 컬럼과 인덱스를 추가한다.
+-- alter table users add index idx_users_level_login (level, login), add index idx_users_level_recommend (level, recommend);
+-- alter table users add column upgrade_run varchar(36), add index idx_users_upgrade_run (upgrade_run);
+-- alter table users modify id varchar(10) character set utf8 collate utf8_bin not null;
+-- alter table users add column version bigint not null default 1, add column updated_at bigint not null default 0, add index idx_users_updated_at (updated_at);
+
+-- getCount()용 사용자 수 카운터. UserDaoJdbc가 users 수정과 같은 트랜잭션에서 갱신한다.
+create table users_count (
+	id tinyint not null,
+	cnt bigint not null,
+	primary key (id)
+) engine=InnoDB;
+
+insert into users_count(id, cnt) select 1, count(*) from users;
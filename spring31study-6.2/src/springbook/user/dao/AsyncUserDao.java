@@ -0,0 +1,110 @@
+package springbook.user.dao;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import springbook.user.domain.User;
+
+/**
+ * UserDao의 블로킹 호출을 별도 스레드에서 실행하고 Future로 결과를 돌려주는 비동기 DAO.
+ * 서로 관계없는 get(), getCount() 같은 호출을 차례로 기다리지 않고 겹쳐서 실행할 수 있다.
+ *  - 작업 스레드 수는 maxConcurrency(DataSource의 최대 커넥션 수에 맞춘다)로 제한되어,
+ *    커넥션보다 많은 호출이 동시에 DB로 몰리지 않고 큐에서 기다린다.
+ *  - 애플리케이션 종료 시 shutdown()을 호출한다. (빈 설정의 destroy-method)
+ *
+ */
+public class AsyncUserDao {
+
+	private UserDao userDao;
+	private int maxConcurrency = 10;
+	private ExecutorService executor;
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public Future<User> get(final String id) {
+		return submit(new Callable<User>() {
+			public User call() {
+				return userDao.get(id);
+			}
+		});
+	}
+
+	public Future<Map<String, User>> getAll(final Collection<String> ids) {
+		return submit(new Callable<Map<String, User>>() {
+			public Map<String, User> call() {
+				return userDao.getAll(ids);
+			}
+		});
+	}
+
+	public Future<List<User>> getPage(final String afterId, final int limit) {
+		return submit(new Callable<List<User>>() {
+			public List<User> call() {
+				return userDao.getPage(afterId, limit);
+			}
+		});
+	}
+
+	public Future<Integer> getCount(final CountMode mode) {
+		return submit(new Callable<Integer>() {
+			public Integer call() {
+				return userDao.getCount(mode);
+			}
+		});
+	}
+
+	public Future<Void> add(final User user) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				userDao.add(user);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> update(final User user) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				userDao.update(user);
+				return null;
+			}
+		});
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			if (executor != null) executor.shutdown();
+		}
+	}
+
+	private <T> Future<T> submit(Callable<T> task) {
+		return executor().submit(task);
+	}
+
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "async-user-dao-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
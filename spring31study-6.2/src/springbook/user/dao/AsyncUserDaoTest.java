@@ -0,0 +1,78 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class AsyncUserDaoTest {
+
+	UserDao mockUserDao;
+	AsyncUserDao asyncUserDao;
+
+	@Before
+	public void setUp() {
+		mockUserDao = mock(UserDao.class);
+		asyncUserDao = new AsyncUserDao();
+		asyncUserDao.setUserDao(mockUserDao);
+	}
+
+	@After
+	public void tearDown() {
+		asyncUserDao.shutdown();
+	}
+
+	@Test
+	public void getAndCount() throws InterruptedException, ExecutionException {
+		User user = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 1, 0);
+		when(mockUserDao.get(user.getId())).thenReturn(user);
+		when(mockUserDao.getCount(CountMode.EXACT)).thenReturn(3);
+
+		Future<User> userFuture = asyncUserDao.get(user.getId());
+		Future<Integer> countFuture = asyncUserDao.getCount(CountMode.EXACT);
+
+		assertThat(userFuture.get().getId(), is(user.getId()));
+		assertThat(countFuture.get(), is(3));
+	}
+
+	@Test
+	public void concurrencyIsLimited() throws InterruptedException, ExecutionException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		when(mockUserDao.get(anyString())).thenAnswer(new Answer<User>() {
+			public User answer(InvocationOnMock invocation) throws InterruptedException {
+				int now = running.incrementAndGet();
+				synchronized (maxRunning) {
+					if (now > maxRunning.get()) maxRunning.set(now);
+				}
+				Thread.sleep(20);
+				running.decrementAndGet();
+				return new User();
+			}
+		});
+		asyncUserDao.setMaxConcurrency(2);
+
+		List<Future<User>> futures = new ArrayList<Future<User>>();
+		for (int i = 0; i < 6; i++) futures.add(asyncUserDao.get("id" + i));
+		for (Future<User> future : futures) future.get();
+
+		assertThat(maxRunning.get(), is(2));
+	}
+
+}
@@ -0,0 +1,349 @@
+package springbook.user.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import springbook.user.domain.User;
+
+/**
+ * get(id) 결과를 메모리에 캐시하는 UserDao 데코레이터.
+ *  - 최대 maxSize개까지 LRU로 유지하고, ttlMillis가 지난 항목은 다시 읽어온다.
+ *  - add/update/deleteAll 등 수정 작업은 위임한 뒤 해당 항목을 캐시에서 제거한다. 트랜잭션 안이면 트랜잭션이
+ *    끝난 뒤에 한 번 더 제거해서, 커밋 전에 다른 스레드가 읽은 이전 값이 캐시에 남지 않게 한다.
+ *  - 같은 id에 대해 여러 스레드가 동시에 캐시 미스가 나도 DB 조회는 한 번만 한다.
+ *  - 캐시된 User를 호출한 쪽에서 수정해도 캐시가 바뀌지 않도록 복사본을 돌려준다.
+ *
+ */
+public class CachingUserDao implements UserDao {
+
+	private UserDao userDao;
+	private int maxSize = 10000;
+	private long ttlMillis = 60 * 1000;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	// 읽는 도중에 무효화된 값을 캐시에 넣지 않기 위한 버전. 다른 id의 수정 때문에 캐시에 넣지 못하는 일이 드물도록
+	// id를 해시로 나눈 stripe마다 따로 센다. allInvalidations는 캐시 전체를 비울 때 센다.
+	private static final int STRIPES = 1024;
+	private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+	private final AtomicLong allInvalidations = new AtomicLong();
+
+	private final ConcurrentMap<String, FutureTask<User>> loading =
+			new ConcurrentHashMap<String, FutureTask<User>>();
+	private final Map<String, CacheEntry> cache =
+			new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+					if (size() > maxSize) {
+						evictionCount.incrementAndGet();
+						return true;
+					}
+					return false;
+				}
+			};
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public User get(final String id) {
+		User cached = lookup(id);
+		if (cached != null) {
+			hitCount.incrementAndGet();
+			return copyOf(cached);
+		}
+		missCount.incrementAndGet();
+
+		FutureTask<User> task = new FutureTask<User>(new Callable<User>() {
+			public User call() {
+				return userDao.get(id);
+			}
+		});
+		FutureTask<User> running = loading.putIfAbsent(id, task);
+		if (running == null) {
+			running = task;
+			long version = versionOf(id);
+			task.run();
+			// 읽는 도중에 invalidate()가 불렸다면 loading에서 이미 빠져 있으므로 캐시에 넣지 않는다.
+			// loading에서 뺀 뒤 캐시에 넣기 전에 불린 무효화는 getAll()처럼 버전으로 확인한다.
+			if (loading.remove(id, task)) {
+				User loaded = getLoaded(task);
+				synchronized (cache) {
+					if (version == versionOf(id)) {
+						cache.put(id, new CacheEntry(loaded, System.currentTimeMillis() + ttlMillis));
+					}
+				}
+			}
+		}
+		return copyOf(getLoaded(running));
+	}
+
+	private User lookup(String id) {
+		synchronized (cache) {
+			CacheEntry entry = cache.get(id);
+			if (entry == null) return null;
+			if (entry.expiresAt < System.currentTimeMillis()) {
+				cache.remove(id);
+				return null;
+			}
+			return entry.user;
+		}
+	}
+
+	private User getLoaded(FutureTask<User> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			// DataAccessException 같은 런타임 예외는 그대로 던져준다.
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// 두 카운터 모두 늘어나기만 하므로 합이 같으면 그사이 무효화가 없었던 것이다.
+	private long versionOf(String id) {
+		return allInvalidations.get() + invalidations.get(stripe(id));
+	}
+
+	private int stripe(String id) {
+		return (id.hashCode() & 0x7fffffff) % STRIPES;
+	}
+
+	private void invalidate(String id) {
+		invalidate(Collections.singletonList(id));
+	}
+
+	private void invalidate(final Collection<String> ids) {
+		evict(ids);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				public void afterCompletion(int status) {
+					evict(ids);
+				}
+			});
+		}
+	}
+
+	private void evict(Collection<String> ids) {
+		for (String id : ids) loading.remove(id);
+		synchronized (cache) {
+			for (String id : ids) {
+				invalidations.incrementAndGet(stripe(id));
+				cache.remove(id);
+			}
+		}
+	}
+
+	private void invalidateAll() {
+		evictAll();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				public void afterCompletion(int status) {
+					evictAll();
+				}
+			});
+		}
+	}
+
+	private void evictAll() {
+		loading.clear();
+		synchronized (cache) {
+			allInvalidations.incrementAndGet();
+			cache.clear();
+		}
+	}
+
+	private List<String> idsOf(Collection<User> users) {
+		List<String> ids = new ArrayList<String>(users.size());
+		for (User user : users) ids.add(user.getId());
+		return ids;
+	}
+
+	// 캐시된 User는 위임 DAO가 읽어온 상태이므로 복사본도 그 상태부터 변경을 추적한다.
+	private User copyOf(User user) {
+		User copy = new User(user.getId(), user.getName(), user.getPassword(), user.getEmail(),
+				user.getLevel(), user.getLogin(), user.getRecommend());
+		copy.setVersion(user.getVersion());
+		copy.setUpdatedAt(user.getUpdatedAt());
+		copy.clearChanges();
+		return copy;
+	}
+
+	public void add(User user) {
+		userDao.add(user);
+		invalidate(user.getId());
+	}
+
+	public void update(User user) {
+		userDao.update(user);
+		invalidate(user.getId());
+	}
+
+	public void deleteAll() {
+		userDao.deleteAll();
+		invalidateAll();
+	}
+
+	public int deleteAll(Collection<String> ids) {
+		int deleted = userDao.deleteAll(ids);
+		invalidate(new ArrayList<String>(ids));
+		return deleted;
+	}
+
+	public void addAll(Collection<User> users) {
+		userDao.addAll(users);
+		invalidate(idsOf(users));
+	}
+
+	public void updateAll(List<User> users) {
+		userDao.updateAll(users);
+		invalidate(idsOf(users));
+	}
+
+	public void upsert(User user) {
+		userDao.upsert(user);
+		invalidate(user.getId());
+	}
+
+	public boolean addIfAbsent(User user) {
+		boolean added = userDao.addIfAbsent(user);
+		invalidate(user.getId());
+		return added;
+	}
+
+	public void upsertAll(Collection<User> users) {
+		userDao.upsertAll(users);
+		invalidate(idsOf(users));
+	}
+
+	public void copyAll(Collection<User> users) {
+		userDao.copyAll(users);
+		invalidate(idsOf(users));
+	}
+
+	public int addAllIfAbsent(Collection<User> users) {
+		int added = userDao.addAllIfAbsent(users);
+		invalidate(idsOf(users));
+		return added;
+	}
+
+	// 캐시에 있는 id는 캐시에서, 나머지는 위임 DAO의 multi-get 한 번으로 가져온다.
+	public Map<String, User> getAll(Collection<String> ids) {
+		Map<String, User> users = new LinkedHashMap<String, User>();
+		List<String> missed = new ArrayList<String>();
+		for (String id : ids) {
+			User cached = lookup(id);
+			if (cached != null) {
+				hitCount.incrementAndGet();
+				users.put(id, copyOf(cached));
+			} else {
+				missCount.incrementAndGet();
+				missed.add(id);
+			}
+		}
+		if (missed.isEmpty()) return users;
+
+		// 읽는 도중에 무효화된 id는 읽어온 값을 캐시에 넣지 않는다.
+		Map<String, Long> versions = new LinkedHashMap<String, Long>();
+		for (String id : missed) versions.put(id, versionOf(id));
+		Map<String, User> loaded = userDao.getAll(missed);
+		synchronized (cache) {
+			long expiresAt = System.currentTimeMillis() + ttlMillis;
+			for (User user : loaded.values()) {
+				Long version = versions.get(user.getId());
+				if (version != null && version == versionOf(user.getId())) {
+					cache.put(user.getId(), new CacheEntry(copyOf(user), expiresAt));
+				}
+			}
+		}
+		for (User user : loaded.values()) users.put(user.getId(), user);
+		return users;
+	}
+
+	public List<User> getAll() {
+		return userDao.getAll();
+	}
+
+	public int getCount() {
+		return userDao.getCount();
+	}
+
+	public int getCount(CountMode mode) {
+		return userDao.getCount(mode);
+	}
+
+	public void forEachUser(UserCallback callback) {
+		userDao.forEachUser(callback);
+	}
+
+	public void parallelScan(int partitions, UserCallback callback) {
+		userDao.parallelScan(partitions, callback);
+	}
+
+	public List<User> getPage(String afterId, int limit) {
+		return userDao.getPage(afterId, limit);
+	}
+
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) {
+		return userDao.getUpgradeCandidates(minLoginForSilver, minRecommendForGold);
+	}
+
+	public List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold) {
+		List<User> upgraded = userDao.upgradeLevels(runId, minLoginForSilver, minRecommendForGold);
+		invalidate(idsOf(upgraded));
+		return upgraded;
+	}
+
+	// 변경 피드는 캐시를 거치지 않는다.
+	public List<User> getChangedSince(long watermark, int limit) {
+		return userDao.getChangedSince(watermark, limit);
+	}
+
+	private static class CacheEntry {
+		final User user;
+		final long expiresAt;
+
+		CacheEntry(User user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
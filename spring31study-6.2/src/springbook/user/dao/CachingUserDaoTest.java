@@ -0,0 +1,154 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class CachingUserDaoTest {
+
+	UserDao mockUserDao;
+	CachingUserDao cachingUserDao;
+	User user1;
+	User user2;
+
+	@Before
+	public void setUp() {
+		user1 = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 1, 0);
+		user2 = new User("leegw700", "이길원", "springno2", "user2@ksug.org", Level.SILVER, 55, 10);
+
+		mockUserDao = mock(UserDao.class);
+		when(mockUserDao.get(user1.getId())).thenReturn(user1);
+		when(mockUserDao.get(user2.getId())).thenReturn(user2);
+
+		cachingUserDao = new CachingUserDao();
+		cachingUserDao.setUserDao(mockUserDao);
+	}
+
+	@Test
+	public void getFromCache() {
+		User first = cachingUserDao.get(user1.getId());
+		User second = cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(1)).get(user1.getId());
+		assertThat(second.getName(), is(user1.getName()));
+		assertThat(cachingUserDao.getMissCount(), is(1L));
+		assertThat(cachingUserDao.getHitCount(), is(1L));
+
+		first.setLevel(Level.GOLD);		// 돌려받은 오브젝트를 수정해도 캐시에는 영향이 없어야 한다.
+		assertThat(cachingUserDao.get(user1.getId()).getLevel(), is(Level.BASIC));
+	}
+
+	@Test
+	public void getAllFromCacheAndDelegate() {
+		when(mockUserDao.getAll(Arrays.asList(user2.getId())))
+			.thenReturn(Collections.singletonMap(user2.getId(), user2));
+		cachingUserDao.get(user1.getId());
+
+		Map<String, User> users = cachingUserDao.getAll(Arrays.asList(user1.getId(), user2.getId()));
+		assertThat(users.size(), is(2));
+		verify(mockUserDao).getAll(Arrays.asList(user2.getId()));	// 캐시에 없는 id만 위임한다.
+
+		cachingUserDao.get(user2.getId());
+		verify(mockUserDao, never()).get(user2.getId());
+	}
+
+	@Test
+	public void invalidateOnUpdate() {
+		cachingUserDao.get(user1.getId());
+		cachingUserDao.update(user1);
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao).update(user1);
+		verify(mockUserDao, times(2)).get(user1.getId());
+	}
+
+	@Test
+	public void updateDuringLoadIsNotCached() {
+		when(mockUserDao.get(user1.getId())).thenAnswer(new Answer<User>() {
+			public User answer(InvocationOnMock invocation) {
+				cachingUserDao.update(user1);	// 읽는 도중에 다른 곳에서 수정된다.
+				return user1;
+			}
+		}).thenReturn(user1);
+
+		cachingUserDao.get(user1.getId());
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(2)).get(user1.getId());
+	}
+
+	@Test
+	public void updateOfOtherIdDuringLoadIsCached() {
+		when(mockUserDao.get(user1.getId())).thenAnswer(new Answer<User>() {
+			public User answer(InvocationOnMock invocation) {
+				cachingUserDao.update(user2);	// 읽는 도중에 다른 사용자가 수정된다.
+				return user1;
+			}
+		});
+
+		cachingUserDao.get(user1.getId());
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(1)).get(user1.getId());
+	}
+
+	@Test
+	public void invalidateAgainAfterTransaction() {
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cachingUserDao.update(user1);
+			// 커밋 전에 다른 스레드가 이전 값을 읽어서 캐시에 넣는다.
+			cachingUserDao.get(user1.getId());
+			for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+			}
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(2)).get(user1.getId());
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() {
+		cachingUserDao.setMaxSize(1);
+
+		cachingUserDao.get(user1.getId());
+		cachingUserDao.get(user2.getId());	// user1이 밀려난다.
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(2)).get(user1.getId());
+		assertThat(cachingUserDao.getEvictionCount(), is(2L));
+	}
+
+	@Test
+	public void expireAfterTtl() throws InterruptedException {
+		cachingUserDao.setTtlMillis(10);
+
+		cachingUserDao.get(user1.getId());
+		Thread.sleep(20);
+		cachingUserDao.get(user1.getId());
+
+		verify(mockUserDao, times(2)).get(user1.getId());
+	}
+
+}
@@ -0,0 +1,11 @@
+package springbook.user.dao;
+
+/**
+ * getCount()에서 사용할 사용자 수 조회 방법.
+ *  - EXACT: users 수정과 같은 트랜잭션에서 갱신되는 카운터 테이블을 읽는다.
+ *  - APPROXIMATE: DB의 테이블 통계 값을 읽고, 정해진 시간 동안 캐시해서 사용한다.
+ *
+ */
+public enum CountMode {
+	EXACT, APPROXIMATE
+}
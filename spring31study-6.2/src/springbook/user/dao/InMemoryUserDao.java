@@ -0,0 +1,299 @@
+package springbook.user.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+import springbook.user.domain.UserField;
+
+/**
+ * 메모리에 사용자를 저장하는 UserDao. 지연 시간이 중요한 곳의 저장소나, JDBC 비용 없이
+ * 알고리즘 자체의 비용을 재는 벤치마크의 기준 구현으로 사용한다.
+ *  - id 색인은 ConcurrentHashMap이고, id 순서가 필요한 getAll()/getPage()/forEachUser()는
+ *    ConcurrentSkipListSet에 따로 유지하는 정렬된 id를 따라간다.
+ *  - 조회는 락 없이 동작한다. 저장된 User는 바꾸지 않고 통째로 교체하며, 넣을 때와 꺼낼 때 복사한다.
+ *  - 같은 id에 대한 쓰기는 putIfAbsent()/replace() 같은 원자적 연산으로 처리한다.
+ *  - 예외와 결과는 UserDaoJdbc와 같다. (없는 id의 get()은 EmptyResultDataAccessException,
+ *    중복 id의 add()는 DuplicateKeyException, 없는 id의 update()는 아무 일도 하지 않는다)
+ *  - 저장할 때마다 version을 올리고 updatedAt을 지금 시각으로 바꾼다. getChangedSince()는 색인 없이 전체를 훑는다.
+ *    트랜잭션이 없어 저장하자마자 보이므로 UserDaoJdbc와 달리 최근 변경을 미루지 않는다. 삭제는 피드에 나오지 않는다.
+ *  - 여러 건을 다루는 작업은 다른 스레드의 쓰기와 섞일 수 있다. addAll()만 중복 id가 있으면
+ *    이번 호출에서 등록한 사용자를 되돌리고 예외를 던진다.
+ *
+ */
+public class InMemoryUserDao implements UserDao {
+
+	private final ConcurrentMap<String, User> users = new ConcurrentHashMap<String, User>();
+	private final ConcurrentSkipListSet<String> sortedIds = new ConcurrentSkipListSet<String>();
+
+	public void add(User user) {
+		User stored = stamped(user, 1);
+		if (users.putIfAbsent(stored.getId(), stored) != null) {
+			throw new DuplicateKeyException("이미 있는 id입니다: " + user.getId());
+		}
+		sortedIds.add(stored.getId());
+	}
+
+	public User get(String id) {
+		User user = users.get(id);
+		if (user == null) throw new EmptyResultDataAccessException(1);
+		return copyOf(user);
+	}
+
+	public List<User> getAll() {
+		List<User> all = new ArrayList<User>(users.size());
+		for (String id : sortedIds) {
+			User user = users.get(id);
+			if (user != null) all.add(copyOf(user));	// 순회 중에 삭제된 사용자는 건너뛴다.
+		}
+		return all;
+	}
+
+	public Map<String, User> getAll(Collection<String> ids) {
+		Map<String, User> found = new LinkedHashMap<String, User>();
+		for (String id : ids) {
+			User user = users.get(id);
+			if (user != null) found.put(id, copyOf(user));
+		}
+		return found;
+	}
+
+	public List<User> getPage(String afterId, int limit) {
+		List<User> page = new ArrayList<User>(Math.min(limit, users.size()));
+		for (String id : afterId == null ? sortedIds : sortedIds.tailSet(afterId, false)) {
+			if (page.size() >= limit) break;
+			User user = users.get(id);
+			if (user != null) page.add(copyOf(user));
+		}
+		return page;
+	}
+
+	public void deleteAll() {
+		for (String id : sortedIds) {
+			remove(id);
+		}
+	}
+
+	public int deleteAll(Collection<String> ids) {
+		int deleted = 0;
+		for (String id : ids) {
+			if (remove(id)) deleted++;
+		}
+		return deleted;
+	}
+
+	private boolean remove(String id) {
+		if (users.remove(id) == null) return false;
+		unindex(id);
+		return true;
+	}
+
+	// 맵에서 지운 뒤 정렬된 id에서 빼는 사이에 같은 id가 다시 등록됐을 수 있으므로 확인해서 되살린다.
+	private void unindex(String id) {
+		sortedIds.remove(id);
+		if (users.containsKey(id)) sortedIds.add(id);
+	}
+
+	public int getCount() {
+		return users.size();
+	}
+
+	public int getCount(CountMode mode) {
+		return users.size();
+	}
+
+	// 바뀐 필드만 지금 저장된 사용자에 덮어쓴다. 그사이 다른 스레드가 같은 사용자를 바꿨으면 다시 시도한다.
+	public void update(User user) {
+		Set<UserField> changed = user.getChangedFields();
+		if (changed.isEmpty()) return;
+		while (true) {
+			User current = users.get(user.getId());
+			if (current == null) return;
+			User merged = stamped(current, current.getVersion() + 1);
+			for (UserField field : changed) copyField(user, merged, field);
+			if (users.replace(user.getId(), current, merged)) break;
+		}
+		user.clearChanges();
+	}
+
+	private void copyField(User from, User to, UserField field) {
+		switch (field) {
+		case NAME: to.setName(from.getName()); break;
+		case PASSWORD: to.setPassword(from.getPassword()); break;
+		case EMAIL: to.setEmail(from.getEmail()); break;
+		case LEVEL: to.setLevel(from.getLevel()); break;
+		case LOGIN: to.setLogin(from.getLogin()); break;
+		case RECOMMEND: to.setRecommend(from.getRecommend()); break;
+		default: throw new AssertionError("Unknown field: " + field);
+		}
+	}
+
+	public void addAll(Collection<User> users) {
+		List<User> added = new ArrayList<User>(users.size());
+		for (User user : users) {
+			User stored = stamped(user, 1);
+			if (this.users.putIfAbsent(stored.getId(), stored) != null) {
+				// 이번 호출에서 등록한 사용자만 되돌린다. 그사이 다른 스레드가 바꾼 값은 건드리지 않는다.
+				for (User undo : added) {
+					if (this.users.remove(undo.getId(), undo)) unindex(undo.getId());
+				}
+				throw new DuplicateKeyException("이미 있는 id입니다: " + user.getId());
+			}
+			sortedIds.add(stored.getId());
+			added.add(stored);
+		}
+	}
+
+	public void updateAll(List<User> users) {
+		for (User user : users) {
+			update(user);
+		}
+	}
+
+	// 값이 모두 같으면 version과 updatedAt을 바꾸지 않는다.
+	public void upsert(User user) {
+		while (true) {
+			User current = users.get(user.getId());
+			if (current == null) {
+				if (users.putIfAbsent(user.getId(), stamped(user, 1)) != null) continue;
+				sortedIds.add(user.getId());
+				return;
+			}
+			if (sameValues(current, user)) return;
+			if (users.replace(user.getId(), current, stamped(user, current.getVersion() + 1))) return;
+		}
+	}
+
+	private boolean sameValues(User u1, User u2) {
+		return u1.getName().equals(u2.getName()) && u1.getPassword().equals(u2.getPassword()) &&
+				Objects.equals(u1.getEmail(), u2.getEmail()) && u1.getLevel() == u2.getLevel() &&
+				u1.getLogin() == u2.getLogin() && u1.getRecommend() == u2.getRecommend();
+	}
+
+	public boolean addIfAbsent(User user) {
+		User stored = stamped(user, 1);
+		if (users.putIfAbsent(stored.getId(), stored) != null) return false;
+		sortedIds.add(stored.getId());
+		return true;
+	}
+
+	public void upsertAll(Collection<User> users) {
+		for (User user : users) {
+			upsert(user);
+		}
+	}
+
+	// 다른 저장소에서 옮겨오는 사용자는 version과 updatedAt을 그대로 두고 덮어쓴다.
+	public void copyAll(Collection<User> users) {
+		for (User user : users) {
+			this.users.put(user.getId(), copyOf(user));
+			sortedIds.add(user.getId());
+		}
+	}
+
+	public int addAllIfAbsent(Collection<User> users) {
+		int added = 0;
+		for (User user : users) {
+			if (addIfAbsent(user)) added++;
+		}
+		return added;
+	}
+
+	public void forEachUser(UserCallback callback) {
+		for (String id : sortedIds) {
+			User user = users.get(id);
+			if (user != null) callback.doWithUser(copyOf(user));
+		}
+	}
+
+	// 메모리에서는 나눠 읽어도 빨라지지 않으므로 forEachUser()처럼 한 스레드에서 id 순서로 넘겨준다.
+	public void parallelScan(int partitions, UserCallback callback) {
+		forEachUser(callback);
+	}
+
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) {
+		List<User> candidates = new ArrayList<User>();
+		for (String id : sortedIds) {
+			User user = users.get(id);
+			if (user == null) continue;
+			if ((user.getLevel() == Level.BASIC && user.getLogin() >= minLoginForSilver) ||
+					(user.getLevel() == Level.SILVER && user.getRecommend() >= minRecommendForGold)) {
+				candidates.add(copyOf(user));
+			}
+		}
+		return candidates;
+	}
+
+	// 사용자마다 지금 저장된 상태로 판단해서 한 단계씩 올린다. runId는 JDBC 구현과 맞추기 위한 것이다.
+	public List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold) {
+		List<User> upgraded = new ArrayList<User>();
+		for (String id : sortedIds) {
+			while (true) {
+				User current = users.get(id);
+				if (current == null) break;
+				if (!((current.getLevel() == Level.BASIC && current.getLogin() >= minLoginForSilver) ||
+						(current.getLevel() == Level.SILVER && current.getRecommend() >= minRecommendForGold))) break;
+				User next = stamped(current, current.getVersion() + 1);
+				next.upgradeLevel();
+				if (users.replace(id, current, next)) {
+					upgraded.add(copyOf(next));
+					break;
+				}
+			}
+		}
+		return upgraded;
+	}
+
+	// updatedAt이 watermark보다 늦은 사용자를 (updatedAt, id) 순으로 정렬해서 UserDaoJdbc와 같은 페이지로 자른다.
+	public List<User> getChangedSince(long watermark, int limit) {
+		List<User> changed = new ArrayList<User>();
+		for (User user : users.values()) {
+			if (user.getUpdatedAt() > watermark) changed.add(copyOf(user));
+		}
+		Collections.sort(changed, BY_UPDATED_AT);
+		int end = Math.min(limit, changed.size());
+		// 마지막 updatedAt이 같은 사용자는 나누지 않는다.
+		while (end > 0 && end < changed.size() &&
+				changed.get(end).getUpdatedAt() == changed.get(end - 1).getUpdatedAt()) end++;
+		return new ArrayList<User>(changed.subList(0, end));
+	}
+
+	private static final Comparator<User> BY_UPDATED_AT = new Comparator<User>() {
+		public int compare(User u1, User u2) {
+			if (u1.getUpdatedAt() != u2.getUpdatedAt()) return u1.getUpdatedAt() < u2.getUpdatedAt() ? -1 : 1;
+			return u1.getId().compareTo(u2.getId());
+		}
+	};
+
+	// 돌려준 User는 저장된 상태와 같으므로 변경 추적을 새로 시작한다.
+	private User copyOf(User user) {
+		User copy = new User(user.getId(), user.getName(), user.getPassword(), user.getEmail(),
+				user.getLevel(), user.getLogin(), user.getRecommend());
+		copy.setVersion(user.getVersion());
+		copy.setUpdatedAt(user.getUpdatedAt());
+		copy.clearChanges();
+		return copy;
+	}
+
+	// 저장할 사본. 지금 시각과 주어진 version을 붙인다.
+	private User stamped(User user, long version) {
+		User copy = copyOf(user);
+		copy.setVersion(version);
+		copy.setUpdatedAt(System.currentTimeMillis());
+		return copy;
+	}
+}
@@ -0,0 +1,141 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class InMemoryUserDaoTest {
+
+	InMemoryUserDao dao;
+	User user1;
+	User user2;
+	User user3;
+
+	@Before
+	public void setUp() {
+		dao = new InMemoryUserDao();
+		user1 = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 1, 0);
+		user2 = new User("leegw700", "이길원", "springno2", "user2@ksug.org", Level.SILVER, 55, 10);
+		user3 = new User("bumjin", "박범진", "springno3", "user3@ksug.org", Level.GOLD, 100, 40);
+	}
+
+	@Test(expected=EmptyResultDataAccessException.class)
+	public void getUserFailure() {
+		dao.get("unknown_id");
+	}
+
+	@Test(expected=DuplicateKeyException.class)
+	public void duplicateKey() {
+		dao.add(user1);
+		dao.add(user1);
+	}
+
+	@Test
+	public void addAllRollsBackOnDuplicate() {
+		dao.add(user3);
+		try {
+			dao.addAll(Arrays.asList(user1, user2, user3));
+		} catch (DuplicateKeyException e) {
+		}
+		assertThat(dao.getCount(), is(1));
+	}
+
+	@Test
+	public void getAllAndPageInIdOrder() {
+		dao.addAll(Arrays.asList(user1, user2, user3));
+
+		List<User> all = dao.getAll();
+		assertThat(all.size(), is(3));
+		assertThat(all.get(0).getId(), is(user3.getId()));	// bumjin
+		assertThat(all.get(1).getId(), is(user1.getId()));	// gyumee
+		assertThat(all.get(2).getId(), is(user2.getId()));	// leegw700
+
+		List<User> page = dao.getPage(user3.getId(), 1);
+		assertThat(page.size(), is(1));
+		assertThat(page.get(0).getId(), is(user1.getId()));
+	}
+
+	@Test
+	public void storedUserIsNotShared() {
+		dao.add(user1);
+		user1.setLevel(Level.GOLD);
+		dao.get(user1.getId()).setName("오민규");
+
+		User stored = dao.get(user1.getId());
+		assertThat(stored.getLevel(), is(Level.BASIC));
+		assertThat(stored.getName(), is("박성철"));
+	}
+
+	@Test
+	public void updateUpsertAndDelete() {
+		dao.update(user1);	// 없는 id는 수정하지 않는다.
+		assertThat(dao.getCount(), is(0));
+
+		dao.upsert(user1);
+		user1.setLevel(Level.SILVER);
+		dao.update(user1);
+		assertThat(dao.get(user1.getId()).getLevel(), is(Level.SILVER));
+
+		assertThat(dao.addAllIfAbsent(Arrays.asList(user1, user2)), is(1));
+		assertThat(dao.deleteAll(Arrays.asList(user1.getId(), "unknown_id")), is(1));
+		assertThat(dao.getAll().size(), is(1));
+	}
+
+	@Test
+	public void addIfAbsentIsAtomic() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 100; i++) {
+				final User user = new User(user1.getId(), "사용자" + i, "p", "e", Level.BASIC, i, 0);
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						return dao.addIfAbsent(user);
+					}
+				}));
+			}
+			int added = 0;
+			for (Future<Boolean> result : results) {
+				if (result.get()) added++;
+			}
+			assertThat(added, is(1));
+			assertThat(dao.getAll().size(), is(1));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void versionAndChangedSince() throws InterruptedException {
+		dao.addAll(Arrays.asList(user1, user2, user3));
+		long watermark = dao.getChangedSince(0, 10).get(2).getUpdatedAt();
+		Thread.sleep(5);
+
+		User user = dao.get(user3.getId());
+		user.setRecommend(41);
+		dao.update(user);
+		dao.upsert(user1);	// 바뀐 값이 없다.
+
+		List<User> changed = dao.getChangedSince(watermark, 10);
+		assertThat(changed.size(), is(1));
+		assertThat(changed.get(0).getId(), is(user3.getId()));
+		assertThat(changed.get(0).getVersion(), is(2L));
+		assertThat(dao.get(user1.getId()).getVersion(), is(1L));
+	}
+
+}
@@ -0,0 +1,86 @@
+package springbook.user.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 지연 시간(마이크로초) 분포를 기록하는 HdrHistogram 방식의 히스토그램.
+ *  - 0~127은 1 단위로, 그 위로는 2의 거듭제곱 구간마다 64개로 나눠 세므로 오차가 1.6% 이내다.
+ *  - 기록은 버킷 하나의 카운터를 올리는 것뿐이라 객체를 만들지 않고 락도 없다.
+ *  - 기록할 수 있는 최대값은 약 1시간이고, 그보다 큰 값은 최대값으로 기록한다.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_COUNT = 128;
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	private static final long MAX_VALUE = (1L << 32) - 1;	// 약 71분
+	private static final int MAX_SHIFT = 25;	// MAX_VALUE >>> 25가 64~127 사이에 온다.
+
+	private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKET_COUNT + MAX_SHIFT * HALF_SUB_BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long micros) {
+		long value = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+		counts.incrementAndGet(indexOf(value));
+		totalCount.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax;
+		while (value > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, value)) break;
+		}
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * percentile(0~100) 위치의 값. 해당 버킷에 들어가는 가장 큰 값을 돌려준다.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+		if (count == 0) return 0;
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+		totalCount.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) return (int) value;
+		// value >>> shift가 64~127 사이에 오도록 하는 shift
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift) - HALF_SUB_BUCKET_COUNT;
+	}
+
+	private static long highestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT) return index;
+		int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,433 @@
+package springbook.user.dao;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import springbook.user.domain.User;
+
+/**
+ * UserDao 메소드마다 호출 수, 에러 수, 처리한 row 수와 지연 시간 분포(p50/p99/p999)를 모으는 데코레이터.
+ *  - 통계 객체는 미리 만들어 두므로 호출마다 하는 일은 nanoTime() 두 번과 카운터 증가뿐이다.
+ *  - start()에서 메소드별 통계를 JMX MBean(jmxDomain:type=UserDao,name=...,method=...)으로 등록하고,
+ *    reportIntervalSeconds마다 로그로 남긴다. (0이면 로그를 남기지 않는다)
+ *  - 애플리케이션 종료 시 shutdown()을 호출한다. (빈 설정의 init-method, destroy-method)
+ *
+ */
+public class MonitoringUserDao implements UserDao {
+
+	private static final Log log = LogFactory.getLog(MonitoringUserDao.class);
+
+	private UserDao userDao;
+	private String name = "userDao";
+	private String jmxDomain = "springbook";
+	private boolean registerMBeans = true;
+	private int reportIntervalSeconds = 60;
+
+	private final Map<String, UserDaoMethodStats> stats = new LinkedHashMap<String, UserDaoMethodStats>();
+	private final UserDaoMethodStats add = stats("add");
+	private final UserDaoMethodStats get = stats("get");
+	private final UserDaoMethodStats getAll = stats("getAll");
+	private final UserDaoMethodStats getAllByIds = stats("getAllByIds");
+	private final UserDaoMethodStats deleteAll = stats("deleteAll");
+	private final UserDaoMethodStats deleteAllByIds = stats("deleteAllByIds");
+	private final UserDaoMethodStats getCount = stats("getCount");
+	private final UserDaoMethodStats update = stats("update");
+	private final UserDaoMethodStats addAll = stats("addAll");
+	private final UserDaoMethodStats updateAll = stats("updateAll");
+	private final UserDaoMethodStats forEachUser = stats("forEachUser");
+	private final UserDaoMethodStats parallelScan = stats("parallelScan");
+	private final UserDaoMethodStats getPage = stats("getPage");
+	private final UserDaoMethodStats getUpgradeCandidates = stats("getUpgradeCandidates");
+	private final UserDaoMethodStats upgradeLevels = stats("upgradeLevels");
+	private final UserDaoMethodStats getChangedSince = stats("getChangedSince");
+	private final UserDaoMethodStats upsert = stats("upsert");
+	private final UserDaoMethodStats addIfAbsent = stats("addIfAbsent");
+	private final UserDaoMethodStats upsertAll = stats("upsertAll");
+	private final UserDaoMethodStats copyAll = stats("copyAll");
+	private final UserDaoMethodStats addAllIfAbsent = stats("addAllIfAbsent");
+
+	private ScheduledExecutorService reporter;
+	private List<ObjectName> registered = Collections.emptyList();
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public void setJmxDomain(String jmxDomain) {
+		this.jmxDomain = jmxDomain;
+	}
+
+	public void setRegisterMBeans(boolean registerMBeans) {
+		this.registerMBeans = registerMBeans;
+	}
+
+	public void setReportIntervalSeconds(int reportIntervalSeconds) {
+		this.reportIntervalSeconds = reportIntervalSeconds;
+	}
+
+	private UserDaoMethodStats stats(String method) {
+		UserDaoMethodStats methodStats = new UserDaoMethodStats(method);
+		stats.put(method, methodStats);
+		return methodStats;
+	}
+
+	public UserDaoMethodStats getStats(String method) {
+		return stats.get(method);
+	}
+
+	public Collection<UserDaoMethodStats> getAllStats() {
+		return Collections.unmodifiableCollection(stats.values());
+	}
+
+	public synchronized void start() throws JMException {
+		if (registerMBeans && registered.isEmpty()) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			List<ObjectName> names = new ArrayList<ObjectName>();
+			for (UserDaoMethodStats methodStats : stats.values()) {
+				ObjectName objectName = new ObjectName(jmxDomain + ":type=UserDao,name=" + ObjectName.quote(name) +
+						",method=" + methodStats.getMethod());
+				server.registerMBean(methodStats, objectName);
+				names.add(objectName);
+			}
+			registered = names;
+		}
+		if (reportIntervalSeconds > 0 && reporter == null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "user-dao-stats-reporter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					report();
+				}
+			}, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	public synchronized void shutdown() {
+		if (reporter != null) {
+			reporter.shutdown();
+			reporter = null;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				log.warn("MBean 해제 실패: " + objectName, e);
+			}
+		}
+		registered = Collections.emptyList();
+	}
+
+	// 호출이 한 번도 없었던 메소드는 건너뛴다.
+	public void report() {
+		if (!log.isInfoEnabled()) return;
+		for (UserDaoMethodStats methodStats : stats.values()) {
+			if (methodStats.getCallCount() > 0) log.info(name + "." + methodStats);
+		}
+	}
+
+	public void add(User user) {
+		long start = System.nanoTime();
+		try {
+			userDao.add(user);
+		} catch (RuntimeException e) {
+			add.recordError(start);
+			throw e;
+		}
+		add.record(start, 1);
+	}
+
+	public User get(String id) {
+		long start = System.nanoTime();
+		User user;
+		try {
+			user = userDao.get(id);
+		} catch (RuntimeException e) {
+			get.recordError(start);
+			throw e;
+		}
+		get.record(start, 1);
+		return user;
+	}
+
+	public List<User> getAll() {
+		long start = System.nanoTime();
+		List<User> users;
+		try {
+			users = userDao.getAll();
+		} catch (RuntimeException e) {
+			getAll.recordError(start);
+			throw e;
+		}
+		getAll.record(start, users.size());
+		return users;
+	}
+
+	public Map<String, User> getAll(Collection<String> ids) {
+		long start = System.nanoTime();
+		Map<String, User> users;
+		try {
+			users = userDao.getAll(ids);
+		} catch (RuntimeException e) {
+			getAllByIds.recordError(start);
+			throw e;
+		}
+		getAllByIds.record(start, users.size());
+		return users;
+	}
+
+	public void deleteAll() {
+		long start = System.nanoTime();
+		try {
+			userDao.deleteAll();
+		} catch (RuntimeException e) {
+			deleteAll.recordError(start);
+			throw e;
+		}
+		deleteAll.record(start, 0);
+	}
+
+	public int deleteAll(Collection<String> ids) {
+		long start = System.nanoTime();
+		int deleted;
+		try {
+			deleted = userDao.deleteAll(ids);
+		} catch (RuntimeException e) {
+			deleteAllByIds.recordError(start);
+			throw e;
+		}
+		deleteAllByIds.record(start, deleted);
+		return deleted;
+	}
+
+	public int getCount() {
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = userDao.getCount();
+		} catch (RuntimeException e) {
+			getCount.recordError(start);
+			throw e;
+		}
+		getCount.record(start, 1);
+		return count;
+	}
+
+	public int getCount(CountMode mode) {
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = userDao.getCount(mode);
+		} catch (RuntimeException e) {
+			getCount.recordError(start);
+			throw e;
+		}
+		getCount.record(start, 1);
+		return count;
+	}
+
+	public void update(User user) {
+		long start = System.nanoTime();
+		try {
+			userDao.update(user);
+		} catch (RuntimeException e) {
+			update.recordError(start);
+			throw e;
+		}
+		update.record(start, 1);
+	}
+
+	public void addAll(Collection<User> users) {
+		long start = System.nanoTime();
+		try {
+			userDao.addAll(users);
+		} catch (RuntimeException e) {
+			addAll.recordError(start);
+			throw e;
+		}
+		addAll.record(start, users.size());
+	}
+
+	public void updateAll(List<User> users) {
+		long start = System.nanoTime();
+		try {
+			userDao.updateAll(users);
+		} catch (RuntimeException e) {
+			updateAll.recordError(start);
+			throw e;
+		}
+		updateAll.record(start, users.size());
+	}
+
+	public void forEachUser(final UserCallback callback) {
+		final long[] rows = new long[1];
+		long start = System.nanoTime();
+		try {
+			userDao.forEachUser(new UserCallback() {
+				public void doWithUser(User user) {
+					rows[0]++;
+					callback.doWithUser(user);
+				}
+			});
+		} catch (RuntimeException e) {
+			forEachUser.recordError(start);
+			throw e;
+		}
+		forEachUser.record(start, rows[0]);
+	}
+
+	// 콜백이 여러 스레드에서 동시에 불리므로 row 수를 AtomicLong으로 센다.
+	public void parallelScan(int partitions, final UserCallback callback) {
+		final AtomicLong rows = new AtomicLong();
+		long start = System.nanoTime();
+		try {
+			userDao.parallelScan(partitions, new UserCallback() {
+				public void doWithUser(User user) {
+					rows.incrementAndGet();
+					callback.doWithUser(user);
+				}
+			});
+		} catch (RuntimeException e) {
+			parallelScan.recordError(start);
+			throw e;
+		}
+		parallelScan.record(start, rows.get());
+	}
+
+	public List<User> getPage(String afterId, int limit) {
+		long start = System.nanoTime();
+		List<User> users;
+		try {
+			users = userDao.getPage(afterId, limit);
+		} catch (RuntimeException e) {
+			getPage.recordError(start);
+			throw e;
+		}
+		getPage.record(start, users.size());
+		return users;
+	}
+
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) {
+		long start = System.nanoTime();
+		List<User> users;
+		try {
+			users = userDao.getUpgradeCandidates(minLoginForSilver, minRecommendForGold);
+		} catch (RuntimeException e) {
+			getUpgradeCandidates.recordError(start);
+			throw e;
+		}
+		getUpgradeCandidates.record(start, users.size());
+		return users;
+	}
+
+	public List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold) {
+		long start = System.nanoTime();
+		List<User> users;
+		try {
+			users = userDao.upgradeLevels(runId, minLoginForSilver, minRecommendForGold);
+		} catch (RuntimeException e) {
+			upgradeLevels.recordError(start);
+			throw e;
+		}
+		upgradeLevels.record(start, users.size());
+		return users;
+	}
+
+	public List<User> getChangedSince(long watermark, int limit) {
+		long start = System.nanoTime();
+		List<User> users;
+		try {
+			users = userDao.getChangedSince(watermark, limit);
+		} catch (RuntimeException e) {
+			getChangedSince.recordError(start);
+			throw e;
+		}
+		getChangedSince.record(start, users.size());
+		return users;
+	}
+
+	public void upsert(User user) {
+		long start = System.nanoTime();
+		try {
+			userDao.upsert(user);
+		} catch (RuntimeException e) {
+			upsert.recordError(start);
+			throw e;
+		}
+		upsert.record(start, 1);
+	}
+
+	public boolean addIfAbsent(User user) {
+		long start = System.nanoTime();
+		boolean added;
+		try {
+			added = userDao.addIfAbsent(user);
+		} catch (RuntimeException e) {
+			addIfAbsent.recordError(start);
+			throw e;
+		}
+		addIfAbsent.record(start, added ? 1 : 0);
+		return added;
+	}
+
+	public void upsertAll(Collection<User> users) {
+		long start = System.nanoTime();
+		try {
+			userDao.upsertAll(users);
+		} catch (RuntimeException e) {
+			upsertAll.recordError(start);
+			throw e;
+		}
+		upsertAll.record(start, users.size());
+	}
+
+	public void copyAll(Collection<User> users) {
+		long start = System.nanoTime();
+		try {
+			userDao.copyAll(users);
+		} catch (RuntimeException e) {
+			copyAll.recordError(start);
+			throw e;
+		}
+		copyAll.record(start, users.size());
+	}
+
+	public int addAllIfAbsent(Collection<User> users) {
+		long start = System.nanoTime();
+		int added;
+		try {
+			added = userDao.addAllIfAbsent(users);
+		} catch (RuntimeException e) {
+			addAllIfAbsent.recordError(start);
+			throw e;
+		}
+		addAllIfAbsent.record(start, added);
+		return added;
+	}
+}
@@ -0,0 +1,122 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class MonitoringUserDaoTest {
+
+	UserDao mockUserDao;
+	MonitoringUserDao monitoringUserDao;
+	User user1;
+	User user2;
+
+	@Before
+	public void setUp() {
+		user1 = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 1, 0);
+		user2 = new User("leegw700", "이길원", "springno2", "user2@ksug.org", Level.SILVER, 55, 10);
+
+		mockUserDao = mock(UserDao.class);
+		monitoringUserDao = new MonitoringUserDao();
+		monitoringUserDao.setUserDao(mockUserDao);
+	}
+
+	@Test
+	public void countCallsAndRows() {
+		when(mockUserDao.getAll()).thenReturn(Arrays.asList(user1, user2));
+
+		monitoringUserDao.getAll();
+		monitoringUserDao.getAll();
+		monitoringUserDao.addAll(Arrays.asList(user1, user2));
+
+		UserDaoMethodStats getAll = monitoringUserDao.getStats("getAll");
+		assertThat(getAll.getCallCount(), is(2L));
+		assertThat(getAll.getRowCount(), is(4L));
+		assertThat(getAll.getErrorCount(), is(0L));
+		assertThat(monitoringUserDao.getStats("addAll").getRowCount(), is(2L));
+		assertThat(monitoringUserDao.getStats("get").getCallCount(), is(0L));
+	}
+
+	@Test
+	public void countErrors() {
+		doThrow(new DuplicateKeyException("dup")).when(mockUserDao).add(user1);
+
+		try {
+			monitoringUserDao.add(user1);
+		} catch (DuplicateKeyException e) {
+			// 예외는 그대로 전달된다.
+		}
+
+		UserDaoMethodStats add = monitoringUserDao.getStats("add");
+		assertThat(add.getCallCount(), is(1L));
+		assertThat(add.getErrorCount(), is(1L));
+		assertThat(add.getRowCount(), is(0L));
+	}
+
+	@Test
+	public void countCallbackRows() {
+		UserDao callbackDao = new InMemoryUserDao();
+		callbackDao.add(user1);
+		callbackDao.add(user2);
+		monitoringUserDao.setUserDao(callbackDao);
+
+		monitoringUserDao.forEachUser(new UserCallback() {
+			public void doWithUser(User user) {
+			}
+		});
+
+		assertThat(monitoringUserDao.getStats("forEachUser").getRowCount(), is(2L));
+	}
+
+	@Test
+	public void histogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) histogram.record(i);
+
+		assertThat(histogram.getTotalCount(), is(10000L));
+		assertThat(histogram.getMax(), is(10000L));
+		assertWithin(histogram.getValueAtPercentile(50), 5000);
+		assertWithin(histogram.getValueAtPercentile(99), 9900);
+		assertWithin(histogram.getValueAtPercentile(99.9), 9990);
+		assertThat(histogram.getValueAtPercentile(100), is(10000L));
+		assertThat(histogram.getValueAtPercentile(0.01), is(1L));
+	}
+
+	private void assertWithin(long actual, long expected) {
+		assertTrue(actual + " vs " + expected, Math.abs(actual - expected) <= expected * 2 / 100);
+	}
+
+	@Test
+	public void registerMBeans() throws Exception {
+		monitoringUserDao.setName("monitoringUserDaoTest");
+		monitoringUserDao.setReportIntervalSeconds(0);
+		monitoringUserDao.start();
+		monitoringUserDao.getCount();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("springbook:type=UserDao,name=\"monitoringUserDaoTest\",method=getCount");
+		try {
+			assertThat((Long) server.getAttribute(name, "CallCount"), is(1L));
+		} finally {
+			monitoringUserDao.shutdown();
+		}
+		assertThat(server.isRegistered(name), is(false));
+	}
+
+}
@@ -0,0 +1,226 @@
+package springbook.user.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 읽기는 복제(replica) DB로, 쓰기는 원본(primary) DB로 보내주는 라우팅 DataSource.
+ *  - DAO가 beginRead()/endRead()로 감싼 조회만 replica로 간다. 나머지는 모두 primary로 간다.
+ *  - 트랜잭션 안에서는 트랜잭션을 시작할 때 primary에서 얻은 커넥션을 계속 사용한다.
+ *  - 쓰기용 커넥션을 반납한 뒤 stickyMillis 동안은 같은 스레드의 조회도 primary로 보내서
+ *    방금 쓴 내용을 읽을 수 있게 한다.
+ *  - maxReplicaLagSeconds를 지정하면 복제 지연이 그보다 큰 replica는 사용하지 않는다.
+ *    (백그라운드 스레드가 lagCheckInterval마다 SHOW SLAVE STATUS의 Seconds_Behind_Master를 확인해두고,
+ *    조회는 확인해둔 값만 읽는다. 확인이 lagCheckInterval의 세 배 넘게 밀린 replica는 응답이 없는 것으로 본다)
+ *  - 사용할 수 있는 replica가 없으면 primary를 사용한다.
+ *  - 애플리케이션 종료 시 shutdown()을 호출한다. (빈 설정의 destroy-method)
+ *
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+
+	private static final String PRIMARY = "primary";
+
+	private static final ThreadLocal<Boolean> readIntent = new ThreadLocal<Boolean>();
+	private final ThreadLocal<Long> stickyUntil = new ThreadLocal<Long>();
+
+	private DataSource primary;
+	private List<DataSource> replicas = new ArrayList<DataSource>();
+	private long stickyMillis = 1000;
+	private int maxReplicaLagSeconds = -1;	// 0보다 작으면 복제 지연을 확인하지 않는다.
+	private long lagCheckInterval = 5000;
+
+	private AtomicLongArray replicaLags;
+	private AtomicLongArray lagCheckedAt;
+	private ScheduledExecutorService lagChecker;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public void setPrimary(DataSource primary) {
+		this.primary = primary;
+	}
+
+	public void setReplicas(List<DataSource> replicas) {
+		this.replicas = replicas;
+	}
+
+	public void setStickyMillis(long stickyMillis) {
+		this.stickyMillis = stickyMillis;
+	}
+
+	public void setMaxReplicaLagSeconds(int maxReplicaLagSeconds) {
+		this.maxReplicaLagSeconds = maxReplicaLagSeconds;
+	}
+
+	public void setLagCheckInterval(long lagCheckInterval) {
+		this.lagCheckInterval = lagCheckInterval;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		Map<Object, Object> targets = new HashMap<Object, Object>();
+		targets.put(PRIMARY, primary);
+		for (int i = 0; i < replicas.size(); i++) {
+			targets.put(replicaKey(i), replicas.get(i));
+		}
+		this.replicaLags = new AtomicLongArray(replicas.size());
+		this.lagCheckedAt = new AtomicLongArray(replicas.size());
+		setTargetDataSources(targets);
+		setDefaultTargetDataSource(primary);
+		super.afterPropertiesSet();
+		if (maxReplicaLagSeconds >= 0 && !replicas.isEmpty()) startLagChecker();
+	}
+
+	// 처음 한 번은 바로 확인하고, 이후에는 replica마다 따로 예약해서 응답하지 않는 replica가 다른 replica의 확인을 막지 않게 한다.
+	private synchronized void startLagChecker() {
+		for (int i = 0; i < replicas.size(); i++) checkLag(i);
+		lagChecker = Executors.newScheduledThreadPool(replicas.size(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "replica-lag-checker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < replicas.size(); i++) {
+			final int index = i;
+			lagChecker.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkLag(index);
+				}
+			}, lagCheckInterval, lagCheckInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void checkLag(int index) {
+		long lag;
+		try {
+			lag = replicaLagSeconds(replicas.get(index));
+		} catch (RuntimeException e) {
+			lag = Long.MAX_VALUE;
+		}
+		replicaLags.set(index, lag);
+		lagCheckedAt.set(index, System.currentTimeMillis());
+	}
+
+	public synchronized void shutdown() {
+		if (lagChecker != null) {
+			lagChecker.shutdownNow();
+			lagChecker = null;
+		}
+	}
+
+	// 이제부터의 조회는 replica로 보내도 된다고 표시한다. 이전 상태를 돌려주므로 endRead()에 넘겨준다.
+	public static boolean beginRead() {
+		boolean previous = Boolean.TRUE.equals(readIntent.get());
+		readIntent.set(Boolean.TRUE);
+		return previous;
+	}
+
+	public static void endRead(boolean previous) {
+		if (previous) readIntent.set(Boolean.TRUE);
+		else readIntent.remove();
+	}
+
+	// 쓰기용 커넥션은 반납(close)되는 시점부터 stickyMillis 동안 이 스레드의 조회를 primary로 고정한다.
+	// 트랜잭션이면 커밋 후 커넥션을 반납할 때가 기준이 된다.
+	@Override
+	public Connection getConnection() throws SQLException {
+		Connection c = super.getConnection();
+		return Boolean.TRUE.equals(readIntent.get()) ? c : stickyOnClose(c);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		Connection c = super.getConnection(username, password);
+		return Boolean.TRUE.equals(readIntent.get()) ? c : stickyOnClose(c);
+	}
+
+	private Connection stickyOnClose(final Connection target) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			new Class<?>[] { Connection.class },
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (method.getName().equals("close")) {
+						stickyUntil.set(System.currentTimeMillis() + stickyMillis);
+					}
+					try {
+						return method.invoke(target, args);
+					} catch (InvocationTargetException e) {
+						throw e.getTargetException();
+					}
+				}
+			});
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		if (!Boolean.TRUE.equals(readIntent.get())) return PRIMARY;
+		long now = System.currentTimeMillis();
+		if (TransactionSynchronizationManager.isActualTransactionActive()) return PRIMARY;
+		Long sticky = stickyUntil.get();
+		if (sticky != null && now < sticky) return PRIMARY;
+
+		Object replica = chooseReplica(now);
+		return replica != null ? replica : PRIMARY;
+	}
+
+	// 지연이 허용 범위 안에 있는 replica를 돌아가면서 사용한다.
+	private Object chooseReplica(long now) {
+		int size = replicas.size();
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % size;
+			if (isReplicaUsable(index, now)) return replicaKey(index);
+		}
+		return null;
+	}
+
+	// 확인 스레드가 저장해둔 값만 읽으므로 DB에 가지 않고 기다리지도 않는다.
+	private boolean isReplicaUsable(int index, long now) {
+		if (maxReplicaLagSeconds < 0) return true;
+		if (now - lagCheckedAt.get(index) > lagCheckInterval * 3) return false;
+		return replicaLags.get(index) <= maxReplicaLagSeconds;
+	}
+
+	// 복제 지연(초). 확인할 수 없거나 복제가 멈춰 있으면 Long.MAX_VALUE.
+	protected long replicaLagSeconds(DataSource replica) {
+		try {
+			Long lag = new JdbcTemplate(replica).query("show slave status", new ResultSetExtractor<Long>() {
+				public Long extractData(ResultSet rs) throws SQLException {
+					if (!rs.next()) return null;
+					long seconds = rs.getLong("Seconds_Behind_Master");
+					return rs.wasNull() ? null : seconds;
+				}
+			});
+			return lag != null ? lag : Long.MAX_VALUE;
+		} catch (DataAccessException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private String replicaKey(int index) {
+		return "replica" + index;
+	}
+}
@@ -0,0 +1,153 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class ReadWriteRoutingDataSourceTest {
+
+	DataSource primary;
+	DataSource replica1;
+	DataSource replica2;
+	ReadWriteRoutingDataSource routingDataSource;
+
+	@Before
+	public void setUp() throws SQLException {
+		primary = mockDataSource();
+		replica1 = mockDataSource();
+		replica2 = mockDataSource();
+
+		routingDataSource = new ReadWriteRoutingDataSource();
+		routingDataSource.setPrimary(primary);
+		routingDataSource.setReplicas(Arrays.asList(replica1, replica2));
+		routingDataSource.setStickyMillis(0);
+		routingDataSource.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() {
+		TransactionSynchronizationManager.setActualTransactionActive(false);
+		routingDataSource.shutdown();
+	}
+
+	private DataSource mockDataSource() throws SQLException {
+		DataSource dataSource = mock(DataSource.class);
+		when(dataSource.getConnection()).thenReturn(mock(Connection.class));
+		return dataSource;
+	}
+
+	@Test
+	public void writeGoesToPrimary() throws SQLException {
+		routingDataSource.getConnection().close();
+
+		verify(primary).getConnection();
+		verify(replica1, never()).getConnection();
+		verify(replica2, never()).getConnection();
+	}
+
+	@Test
+	public void readsAreSpreadOverReplicas() throws SQLException {
+		readConnection();
+		readConnection();
+
+		verify(primary, never()).getConnection();
+		verify(replica1).getConnection();
+		verify(replica2).getConnection();
+	}
+
+	@Test
+	public void readInTransactionGoesToPrimary() throws SQLException {
+		TransactionSynchronizationManager.setActualTransactionActive(true);
+		readConnection();
+
+		verify(primary).getConnection();
+	}
+
+	@Test
+	public void readYourWrites() throws SQLException {
+		routingDataSource.setStickyMillis(60 * 1000);
+
+		routingDataSource.getConnection().close();	// 쓰기
+		readConnection();
+
+		verify(primary, times(2)).getConnection();
+	}
+
+	@Test
+	public void laggingReplicaIsSkipped() throws SQLException {
+		routingDataSource = new ReadWriteRoutingDataSource() {
+			protected long replicaLagSeconds(DataSource replica) {
+				return replica == replica1 ? 100 : 0;
+			}
+		};
+		routingDataSource.setPrimary(primary);
+		routingDataSource.setReplicas(Arrays.asList(replica1, replica2));
+		routingDataSource.setMaxReplicaLagSeconds(10);
+		routingDataSource.afterPropertiesSet();
+
+		readConnection();
+		readConnection();
+
+		verify(replica1, never()).getConnection();
+		verify(replica2, times(2)).getConnection();
+	}
+
+	@Test(timeout = 5000)
+	public void hungLagCheckDoesNotBlockReads() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger replica1Checks = new AtomicInteger();
+		routingDataSource = new ReadWriteRoutingDataSource() {
+			protected long replicaLagSeconds(DataSource replica) {
+				if (replica == replica1 && replica1Checks.incrementAndGet() > 1) {
+					try {
+						release.await();	// 두 번째 확인부터 replica1이 응답하지 않는다.
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return 0;
+			}
+		};
+		routingDataSource.setPrimary(primary);
+		routingDataSource.setReplicas(Arrays.asList(replica1, replica2));
+		routingDataSource.setMaxReplicaLagSeconds(10);
+		routingDataSource.setLagCheckInterval(20);
+		routingDataSource.afterPropertiesSet();
+
+		Thread.sleep(200);
+		for (int i = 0; i < 4; i++) readConnection();
+		release.countDown();
+
+		verify(replica1, never()).getConnection();
+		verify(replica2, times(4)).getConnection();
+	}
+
+	private void readConnection() throws SQLException {
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			Connection c = routingDataSource.getConnection();
+			assertThat(c != null, is(true));
+			c.close();
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+}
@@ -0,0 +1,784 @@
+package springbook.user.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import springbook.user.domain.User;
+
+/**
+ * users 테이블을 여러 DB(샤드)에 나눠 저장하는 UserDao.
+ *  - 각 샤드는 이름을 가진 UserDao(보통 샤드 DB마다 하나씩 만든 UserDaoJdbc)이다.
+ *  - User의 id를 일관된 해시(consistent hashing)로 샤드에 배정한다. 샤드마다 virtualNodes개의 점을
+ *    해시 링에 올려두므로, 샤드를 추가해도 새 샤드로 옮겨야 하는 사용자는 1/N 정도뿐이다.
+ *  - add/get/update 등 id 하나짜리 작업은 해당 샤드로만 보낸다.
+ *    여러 사용자를 다루는 작업은 샤드별로 나눠서 병렬로 실행한다. (샤드 사이의 트랜잭션은 없다)
+ *  - getAll()/getPage()는 샤드별로 id 순으로 정렬된 결과를 k-way merge해서 id 순서를 유지한다.
+ *    (id 비교는 String.compareTo() 기준이므로 DB의 id 컬럼도 바이너리 정렬이어야 한다. schema.sql의 utf8_bin 참고.
+ *    리밸런싱 커서와 getPage()의 afterId도 같은 순서를 쓰므로, 대소문자를 구분하지 않는 정렬이면 사용자를 빠뜨리거나
+ *    잘못된 샤드로 보낼 수 있다)
+ *  - addShard()로 샤드를 추가하면 기존 샤드를 id 순으로 합쳐서 rebalanceBatchSize개쯤씩 훑어 새 샤드로 갈
+ *    사용자를 옮긴다. 한 배치를 옮기는 동안에는 그 범위에서 새 샤드로 갈 id의 호출과 샤드 전체를 다루는 호출만
+ *    기다리고, 나머지 id의 호출은 기존 샤드에서 그대로 처리된다. 배치 사이에는 rebalancePauseMillis만큼 쉬어서
+ *    서비스 부하를 조절한다.
+ *  - forEachUser()/parallelScan()은 샤드를 차례로 순회한다. 리밸런싱 중에는 옮겨진 사용자를
+ *    두 번 넘겨줄 수 있지만 빠뜨리지는 않는다. (새 샤드를 맨 마지막에 순회한다)
+ *  - 애플리케이션 종료 시 shutdown()을 호출한다. (빈 설정의 destroy-method)
+ *
+ */
+public class ShardedUserDao implements UserDao {
+
+	private int virtualNodes = 160;
+	private int rebalanceBatchSize = 1000;
+	private long rebalancePauseMillis = 0;
+
+	private volatile Map<String, UserDao> shards = new LinkedHashMap<String, UserDao>();
+	private volatile HashRing ring = new HashRing(shards.keySet(), virtualNodes);
+	private volatile Migration migration;	// 리밸런싱 중에만 값이 있다.
+
+	// 호출은 읽기 락을 잡고 샤드를 고른다. 리밸런싱은 쓰기 락을 잡고 옮기는 범위를 바꾸므로,
+	// 범위가 바뀔 때 그 범위의 id로 실행 중인 호출이 남아 있지 않다.
+	private final ReentrantReadWriteLock routingLock = new ReentrantReadWriteLock();
+	private ThreadPoolExecutor executor;
+
+	public void setShards(Map<String, UserDao> shards) {
+		this.shards = new LinkedHashMap<String, UserDao>(shards);
+		this.ring = new HashRing(this.shards.keySet(), virtualNodes);
+		resizeExecutor(this.shards.size());
+	}
+
+	public void setVirtualNodes(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+		this.ring = new HashRing(this.shards.keySet(), virtualNodes);
+	}
+
+	public void setRebalanceBatchSize(int rebalanceBatchSize) {
+		this.rebalanceBatchSize = rebalanceBatchSize;
+	}
+
+	public void setRebalancePauseMillis(long rebalancePauseMillis) {
+		this.rebalancePauseMillis = rebalancePauseMillis;
+	}
+
+	public void add(User user) {
+		lockRouting(Collections.singleton(user.getId()));
+		try {
+			shardFor(user.getId()).add(user);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public User get(String id) {
+		lockRouting(Collections.singleton(id));
+		try {
+			return shardFor(id).get(id);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void update(User user) {
+		lockRouting(Collections.singleton(user.getId()));
+		try {
+			shardFor(user.getId()).update(user);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void upsert(User user) {
+		lockRouting(Collections.singleton(user.getId()));
+		try {
+			shardFor(user.getId()).upsert(user);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public boolean addIfAbsent(User user) {
+		lockRouting(Collections.singleton(user.getId()));
+		try {
+			return shardFor(user.getId()).addIfAbsent(user);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void addAll(Collection<User> users) {
+		lockRouting(idsOf(users));
+		try {
+			final Map<UserDao, List<User>> groups = groupUsers(users);
+			scatter(groups.keySet(), new ShardWork<Void>() {
+				public Void doWithShard(UserDao shard) {
+					shard.addAll(groups.get(shard));
+					return null;
+				}
+			});
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void updateAll(List<User> users) {
+		lockRouting(idsOf(users));
+		try {
+			final Map<UserDao, List<User>> groups = groupUsers(users);
+			scatter(groups.keySet(), new ShardWork<Void>() {
+				public Void doWithShard(UserDao shard) {
+					shard.updateAll(groups.get(shard));
+					return null;
+				}
+			});
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void upsertAll(Collection<User> users) {
+		lockRouting(idsOf(users));
+		try {
+			final Map<UserDao, List<User>> groups = groupUsers(users);
+			scatter(groups.keySet(), new ShardWork<Void>() {
+				public Void doWithShard(UserDao shard) {
+					shard.upsertAll(groups.get(shard));
+					return null;
+				}
+			});
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void copyAll(Collection<User> users) {
+		lockRouting(idsOf(users));
+		try {
+			final Map<UserDao, List<User>> groups = groupUsers(users);
+			scatter(groups.keySet(), new ShardWork<Void>() {
+				public Void doWithShard(UserDao shard) {
+					shard.copyAll(groups.get(shard));
+					return null;
+				}
+			});
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public int addAllIfAbsent(Collection<User> users) {
+		lockRouting(idsOf(users));
+		try {
+			final Map<UserDao, List<User>> groups = groupUsers(users);
+			return sum(scatter(groups.keySet(), new ShardWork<Integer>() {
+				public Integer doWithShard(UserDao shard) {
+					return shard.addAllIfAbsent(groups.get(shard));
+				}
+			}));
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	// 샤드별 결과를 모아 요청한 id 순서대로 돌려준다.
+	public Map<String, User> getAll(Collection<String> ids) {
+		lockRouting(ids);
+		try {
+			final Map<UserDao, List<String>> groups = groupIds(ids);
+			Map<String, User> found = new LinkedHashMap<String, User>();
+			for (Map<String, User> users : scatter(groups.keySet(), new ShardWork<Map<String, User>>() {
+				public Map<String, User> doWithShard(UserDao shard) {
+					return shard.getAll(groups.get(shard));
+				}
+			})) {
+				found.putAll(users);
+			}
+
+			Map<String, User> users = new LinkedHashMap<String, User>();
+			for (String id : ids) {
+				User user = found.get(id);
+				if (user != null) users.put(id, user);
+			}
+			return users;
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public List<User> getAll() {
+		lockRoutingAll();
+		try {
+			return merge(scatter(shards.values(), new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.getAll();
+				}
+			}), Integer.MAX_VALUE);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	// 샤드마다 afterId 다음 limit개를 읽어서 합친 뒤 앞에서부터 limit개를 잘라낸다.
+	public List<User> getPage(final String afterId, final int limit) {
+		lockRoutingAll();
+		try {
+			return merge(scatter(shards.values(), new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.getPage(afterId, limit);
+				}
+			}), limit);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public int getCount() {
+		return getCount(CountMode.EXACT);
+	}
+
+	public int getCount(final CountMode mode) {
+		lockRoutingAll();
+		try {
+			return sum(scatter(shards.values(), new ShardWork<Integer>() {
+				public Integer doWithShard(UserDao shard) {
+					return shard.getCount(mode);
+				}
+			}));
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public void deleteAll() {
+		lockRoutingAll();
+		try {
+			scatter(shards.values(), new ShardWork<Void>() {
+				public Void doWithShard(UserDao shard) {
+					shard.deleteAll();
+					return null;
+				}
+			});
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public int deleteAll(Collection<String> ids) {
+		lockRouting(ids);
+		try {
+			final Map<UserDao, List<String>> groups = groupIds(ids);
+			return sum(scatter(groups.keySet(), new ShardWork<Integer>() {
+				public Integer doWithShard(UserDao shard) {
+					return shard.deleteAll(groups.get(shard));
+				}
+			}));
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	// 스캔은 오래 걸리므로 락을 잡지 않는다. 콜백이 여러 스레드에서 불리지 않도록 샤드를 차례로 순회한다.
+	public void forEachUser(UserCallback callback) {
+		for (UserDao shard : shards.values()) {
+			shard.forEachUser(callback);
+		}
+	}
+
+	// 샤드마다 커넥션 풀이 따로 있으므로 샤드 안에서 partitions개로 나눠 읽고, 샤드는 forEachUser()처럼 차례로 순회한다.
+	public void parallelScan(int partitions, UserCallback callback) {
+		for (UserDao shard : shards.values()) {
+			shard.parallelScan(partitions, callback);
+		}
+	}
+
+	public List<User> getUpgradeCandidates(final int minLoginForSilver, final int minRecommendForGold) {
+		lockRoutingAll();
+		try {
+			List<User> candidates = new ArrayList<User>();
+			for (List<User> users : scatter(shards.values(), new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.getUpgradeCandidates(minLoginForSilver, minRecommendForGold);
+				}
+			})) {
+				candidates.addAll(users);
+			}
+			return candidates;
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	public List<User> upgradeLevels(final String runId, final int minLoginForSilver, final int minRecommendForGold) {
+		lockRoutingAll();
+		try {
+			List<User> upgraded = new ArrayList<User>();
+			for (List<User> users : scatter(shards.values(), new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.upgradeLevels(runId, minLoginForSilver, minRecommendForGold);
+				}
+			})) {
+				upgraded.addAll(users);
+			}
+			return upgraded;
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	// 샤드마다 limit개쯤 가져와서 (updatedAt, id) 순으로 합친다. limit을 채운 샤드는 그 뒤의 변경을 아직 보여주지
+	// 않았으므로, 그런 샤드의 마지막 updatedAt 중 가장 이른 시각까지만 돌려준다. 리밸런싱 배치가 복사만 하고 실패해서
+	// 두 샤드에 있는 사용자는 한 번만 넣는다. (옮길 때 updatedAt을 그대로 가져가므로 옮겨진 사용자가 다시 나오지 않는다)
+	public List<User> getChangedSince(final long watermark, final int limit) {
+		lockRoutingAll();
+		try {
+			long cutoff = Long.MAX_VALUE;
+			List<User> changed = new ArrayList<User>();
+			for (List<User> users : scatter(shards.values(), new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.getChangedSince(watermark, limit);
+				}
+			})) {
+				if (users.size() >= limit && !users.isEmpty()) {
+					cutoff = Math.min(cutoff, users.get(users.size() - 1).getUpdatedAt());
+				}
+				changed.addAll(users);
+			}
+			Collections.sort(changed, BY_UPDATED_AT);
+
+			List<User> page = new ArrayList<User>(Math.min(limit, changed.size()));
+			Set<String> ids = new HashSet<String>();
+			for (User user : changed) {
+				if (user.getUpdatedAt() > cutoff) break;
+				// limit을 채운 뒤에는 마지막 updatedAt이 같은 사용자만 더 넣는다.
+				if (page.size() >= limit && user.getUpdatedAt() != page.get(page.size() - 1).getUpdatedAt()) break;
+				if (ids.add(user.getId())) page.add(user);
+			}
+			return page;
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+
+	private static final Comparator<User> BY_UPDATED_AT = new Comparator<User>() {
+		public int compare(User u1, User u2) {
+			if (u1.getUpdatedAt() != u2.getUpdatedAt()) return u1.getUpdatedAt() < u2.getUpdatedAt() ? -1 : 1;
+			return u1.getId().compareTo(u2.getId());
+		}
+	};
+
+	/**
+	 * 샤드를 추가하고 새 샤드로 가야 할 사용자를 옮긴다. 옮기기가 끝나면 돌아온다.
+	 * 중간에 예외가 나면 옮긴 곳까지는 그대로 유지되고, 같은 샤드로 다시 호출하면 이어서 옮긴다.
+	 */
+	public synchronized void addShard(String name, UserDao shard) {
+		Migration m = this.migration;
+		if (m == null) {
+			if (shards.containsKey(name)) throw new IllegalArgumentException("이미 있는 샤드입니다: " + name);
+			Map<String, UserDao> newShards = new LinkedHashMap<String, UserDao>(shards);
+			newShards.put(name, shard);
+			m = new Migration(name, new HashRing(newShards.keySet(), virtualNodes));
+
+			routingLock.writeLock().lock();
+			try {
+				this.shards = newShards;
+				this.migration = m;
+			} finally {
+				routingLock.writeLock().unlock();
+			}
+			resizeExecutor(newShards.size());
+		} else if (!m.target.equals(name)) {
+			throw new IllegalStateException("리밸런싱이 끝나지 않은 샤드가 있습니다: " + m.target);
+		}
+
+		while (moveNextBatch(m)) {
+			if (rebalancePauseMillis > 0) {
+				try {
+					Thread.sleep(rebalancePauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("리밸런싱이 중단되었습니다: " + name, e);
+				}
+			}
+		}
+
+		routingLock.writeLock().lock();
+		try {
+			this.ring = m.ring;
+			this.migration = null;
+		} finally {
+			routingLock.writeLock().unlock();
+		}
+	}
+
+	// 기존 샤드들에서 cursor 다음의 사용자를 합쳐서 rebalanceBatchSize개쯤 읽고, 그중 새 샤드로 갈 사용자를 옮긴다.
+	// 더 읽을 사용자가 없으면 false.
+	// 쓰기 락은 옮기는 범위를 바꿀 때만 잠깐 잡는다. 어디까지 읽을지 모르므로 읽는 동안에는 cursor 뒤 전부를,
+	// 복사하고 지우는 동안에는 읽은 범위만 막는다.
+	private boolean moveNextBatch(Migration m) {
+		final String cursor = m.cursor;
+		final UserDao target = shards.get(m.target);
+		List<UserDao> sources = new ArrayList<UserDao>();
+		for (UserDao shard : shards.values()) {
+			if (shard != target) sources.add(shard);
+		}
+
+		String moved = null;
+		updateMigration(m, cursor, true, null);
+		try {
+			// id는 샤드에 고르게 나뉘므로 샤드마다 나눠 읽어도 합치면 rebalanceBatchSize개쯤 된다.
+			final int perShard = Math.max(1, (rebalanceBatchSize + sources.size() - 1) / sources.size());
+			List<List<User>> pages = scatter(sources, new ShardWork<List<User>>() {
+				public List<User> doWithShard(UserDao shard) {
+					return shard.getPage(cursor, perShard);
+				}
+			});
+			String last = lastCompleteId(pages, perShard);
+			if (last == null) return false;
+			updateMigration(m, cursor, true, last);
+
+			List<User> moving = new ArrayList<User>();
+			Map<UserDao, List<String>> movingIds = new LinkedHashMap<UserDao, List<String>>();
+			for (int i = 0; i < sources.size(); i++) {
+				List<String> ids = new ArrayList<String>();
+				for (User user : pages.get(i)) {
+					if (user.getId().compareTo(last) > 0) break;
+					if (m.ring.owner(user.getId()).equals(m.target)) {
+						moving.add(user);
+						ids.add(user.getId());
+					}
+				}
+				if (!ids.isEmpty()) movingIds.put(sources.get(i), ids);
+			}
+			if (!moving.isEmpty()) {
+				// 이전 시도에서 복사까지만 됐을 수도 있으므로 덮어쓰며 복사한다.
+				// 옮기는 것은 변경이 아니므로 version과 updatedAt을 그대로 가져간다.
+				target.copyAll(moving);
+				for (Map.Entry<UserDao, List<String>> entry : movingIds.entrySet()) {
+					entry.getKey().deleteAll(entry.getValue());
+				}
+			}
+			moved = last;
+			return true;
+		} finally {
+			updateMigration(m, moved != null ? moved : cursor, false, null);
+		}
+	}
+
+	// 샤드별로 읽은 페이지에서 모든 샤드를 빠짐없이 읽은 마지막 id. 끝까지 읽지 않은 샤드의 마지막 id 중 가장 작은 것이고,
+	// 모든 샤드를 끝까지 읽었으면 가장 큰 id다. 읽은 사용자가 없으면 null.
+	private String lastCompleteId(List<List<User>> pages, int perShard) {
+		String last = null;
+		for (List<User> page : pages) {
+			if (page.size() < perShard) continue;
+			String id = page.get(page.size() - 1).getId();
+			if (last == null || id.compareTo(last) < 0) last = id;
+		}
+		if (last != null) return last;
+		for (List<User> page : pages) {
+			if (page.isEmpty()) continue;
+			String id = page.get(page.size() - 1).getId();
+			if (last == null || id.compareTo(last) > 0) last = id;
+		}
+		return last;
+	}
+
+	private void updateMigration(Migration m, String cursor, boolean moving, String movingUpTo) {
+		routingLock.writeLock().lock();
+		try {
+			m.cursor = cursor;
+			m.moving = moving;
+			m.movingUpTo = movingUpTo;
+		} finally {
+			routingLock.writeLock().unlock();
+		}
+		m.changed();
+	}
+
+	// ids 중에 옮기는 중인 사용자가 있으면 그 배치가 끝날 때까지 기다린 뒤 읽기 락을 잡는다. ids가 null이면 샤드 전체를
+	// 다루는 호출이므로 옮기는 중이면 기다린다. 기다리는 동안에는 읽기 락을 놓아야 리밸런싱이 쓰기 락을 잡을 수 있다.
+	private void lockRouting(Collection<String> ids) {
+		while (true) {
+			routingLock.readLock().lock();
+			Migration m = this.migration;
+			if (m == null || !m.isMoving(ids)) return;
+			long generation = m.generation();
+			routingLock.readLock().unlock();
+			m.awaitChange(generation);
+		}
+	}
+
+	private void lockRoutingAll() {
+		lockRouting(null);
+	}
+
+	private Collection<String> idsOf(Collection<User> users) {
+		List<String> ids = new ArrayList<String>(users.size());
+		for (User user : users) ids.add(user.getId());
+		return ids;
+	}
+
+	private UserDao shardFor(String id) {
+		Migration m = this.migration;
+		String owner;
+		if (m != null && m.isMoved(id)) owner = m.ring.owner(id);
+		else owner = ring.owner(id);
+		return shards.get(owner);
+	}
+
+	private Map<UserDao, List<User>> groupUsers(Collection<User> users) {
+		Map<UserDao, List<User>> groups = new LinkedHashMap<UserDao, List<User>>();
+		for (User user : users) {
+			UserDao shard = shardFor(user.getId());
+			List<User> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<User>();
+				groups.put(shard, group);
+			}
+			group.add(user);
+		}
+		return groups;
+	}
+
+	private Map<UserDao, List<String>> groupIds(Collection<String> ids) {
+		Map<UserDao, List<String>> groups = new LinkedHashMap<UserDao, List<String>>();
+		for (String id : ids) {
+			UserDao shard = shardFor(id);
+			List<String> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<String>();
+				groups.put(shard, group);
+			}
+			group.add(id);
+		}
+		return groups;
+	}
+
+	// id 순으로 정렬된 샤드별 결과를 id 순서를 유지하며 합친다. 최대 limit개.
+	private List<User> merge(List<List<User>> sortedLists, int limit) {
+		PriorityQueue<ShardCursor> heads = new PriorityQueue<ShardCursor>(
+				Math.max(1, sortedLists.size()), new Comparator<ShardCursor>() {
+			public int compare(ShardCursor c1, ShardCursor c2) {
+				return c1.current.getId().compareTo(c2.current.getId());
+			}
+		});
+		int total = 0;
+		for (List<User> list : sortedLists) {
+			total += list.size();
+			Iterator<User> it = list.iterator();
+			if (it.hasNext()) heads.add(new ShardCursor(it));
+		}
+
+		List<User> merged = new ArrayList<User>(Math.min(total, limit));
+		while (merged.size() < limit && !heads.isEmpty()) {
+			ShardCursor head = heads.poll();
+			merged.add(head.current);
+			if (head.advance()) heads.add(head);
+		}
+		return merged;
+	}
+
+	private int sum(List<Integer> counts) {
+		int sum = 0;
+		for (int count : counts) sum += count;
+		return sum;
+	}
+
+	// 샤드마다 작업을 동시에 실행하고, 샤드 순서대로 결과를 모은다.
+	private <T> List<T> scatter(Collection<UserDao> targets, final ShardWork<T> work) {
+		List<T> results = new ArrayList<T>(targets.size());
+		if (targets.size() == 1) {
+			results.add(work.doWithShard(targets.iterator().next()));
+			return results;
+		}
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(targets.size());
+		for (final UserDao shard : targets) {
+			futures.add(executor().submit(new Callable<T>() {
+				public T call() {
+					return work.doWithShard(shard);
+				}
+			}));
+		}
+		for (Future<T> future : futures) {
+			results.add(getResult(future));
+		}
+		return results;
+	}
+
+	private <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			// DataAccessException 같은 런타임 예외는 그대로 던져준다.
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			if (executor != null) executor.shutdown();
+		}
+	}
+
+	// 스레드는 샤드 수만큼만 둔다. 느린 샤드가 있어도 스레드가 늘어나지 않고 작업이 큐에서 기다린다.
+	private synchronized ThreadPoolExecutor executor() {
+		if (executor == null) {
+			int size = Math.max(1, shards.size());
+			executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "sharded-user-dao-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	// 샤드가 늘면 스레드도 늘린다. 늘릴 때는 최대 크기를 먼저 바꿔야 한다.
+	private synchronized void resizeExecutor(int size) {
+		if (executor == null || size <= executor.getMaximumPoolSize()) return;
+		executor.setMaximumPoolSize(size);
+		executor.setCorePoolSize(size);
+	}
+
+	private interface ShardWork<T> {
+		T doWithShard(UserDao shard);
+	}
+
+	private static class ShardCursor {
+		final Iterator<User> it;
+		User current;
+
+		ShardCursor(Iterator<User> it) {
+			this.it = it;
+			this.current = it.next();
+		}
+
+		boolean advance() {
+			if (!it.hasNext()) return false;
+			current = it.next();
+			return true;
+		}
+	}
+
+	// 리밸런싱 진행 상태. 새 샤드로 갈 사용자 중 id가 cursor 이하인 사용자는 이미 옮겨졌다.
+	// moving이면 cursor 다음부터 movingUpTo까지(null이면 끝까지) 새 샤드로 갈 사용자를 옮기는 중이다.
+	// 상태는 routingLock의 쓰기 락을 잡고 바꾸고, 바꾼 뒤에 changed()로 기다리는 호출을 깨운다.
+	private static class Migration {
+		final String target;
+		final HashRing ring;
+		volatile String cursor;
+		volatile boolean moving;
+		volatile String movingUpTo;
+		private long generation;
+
+		Migration(String target, HashRing ring) {
+			this.target = target;
+			this.ring = ring;
+		}
+
+		boolean isMoved(String id) {
+			return cursor != null && id.compareTo(cursor) <= 0 && ring.owner(id).equals(target);
+		}
+
+		boolean isMoving(Collection<String> ids) {
+			if (!moving) return false;
+			if (ids == null) return true;
+			for (String id : ids) {
+				if (cursor != null && id.compareTo(cursor) <= 0) continue;
+				if (movingUpTo != null && id.compareTo(movingUpTo) > 0) continue;
+				if (ring.owner(id).equals(target)) return true;
+			}
+			return false;
+		}
+
+		synchronized long generation() {
+			return generation;
+		}
+
+		synchronized void changed() {
+			generation++;
+			notifyAll();
+		}
+
+		synchronized void awaitChange(long seen) {
+			while (generation == seen) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("리밸런싱 배치가 끝나기를 기다리다 중단되었습니다.", e);
+				}
+			}
+		}
+	}
+
+	private static class HashRing {
+		// MessageDigest는 스레드에 안전하지 않고 getInstance()는 provider를 찾느라 비싸므로 스레드마다 하나씩 만들어 쓴다.
+		private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+
+		private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+
+		HashRing(Collection<String> names, int virtualNodes) {
+			for (String name : names) {
+				for (int i = 0; i < virtualNodes; i++) {
+					points.put(hash(name + "#" + i), name);
+				}
+			}
+		}
+
+		String owner(String id) {
+			if (points.isEmpty()) throw new IllegalStateException("샤드가 설정되지 않았습니다.");
+			Map.Entry<Long, String> point = points.ceilingEntry(hash(id));
+			return (point != null ? point : points.firstEntry()).getValue();
+		}
+
+		// MD5의 앞 8바이트. 분포가 고르고 JVM이나 서버가 바뀌어도 같은 값이 나온다.
+		// (해시를 바꾸면 이미 저장된 사용자의 샤드가 달라지므로 MD5를 그대로 쓴다)
+		private static long hash(String key) {
+			byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i++) {
+				h = (h << 8) | (digest[i] & 0xff);
+			}
+			return h;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class ShardedUserDaoTest {
+
+	UserDao shard0;
+	UserDao shard1;
+	ShardedUserDao shardedUserDao;
+	List<User> users;
+
+	@Before
+	public void setUp() {
+		shard0 = mock(UserDao.class);
+		shard1 = mock(UserDao.class);
+		Map<String, UserDao> shards = new LinkedHashMap<String, UserDao>();
+		shards.put("shard0", shard0);
+		shards.put("shard1", shard1);
+
+		shardedUserDao = new ShardedUserDao();
+		shardedUserDao.setShards(shards);
+
+		users = new ArrayList<User>();
+		for (int i = 0; i < 50; i++) {
+			users.add(new User(String.format("user%02d", i), "사용자" + i, "p" + i, "user" + i + "@ksug.org",
+					Level.BASIC, i, 0));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		shardedUserDao.shutdown();
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void addAllIsSplitByShard() {
+		shardedUserDao.addAll(users);
+
+		ArgumentCaptor<List<User>> captor0 = ArgumentCaptor.forClass((Class) List.class);
+		ArgumentCaptor<List<User>> captor1 = ArgumentCaptor.forClass((Class) List.class);
+		verify(shard0).addAll(captor0.capture());
+		verify(shard1).addAll(captor1.capture());
+
+		List<User> added0 = captor0.getValue();
+		List<User> added1 = captor1.getValue();
+		assertThat(added0.size() + added1.size(), is(users.size()));
+
+		// 같은 id는 항상 같은 샤드로 간다.
+		for (User user : added0) {
+			shardedUserDao.get(user.getId());
+			verify(shard0).get(user.getId());
+			verify(shard1, never()).get(user.getId());
+		}
+	}
+
+	@Test
+	public void getAllMergesInIdOrder() {
+		when(shard0.getAll()).thenReturn(Arrays.asList(users.get(0), users.get(2), users.get(4)));
+		when(shard1.getAll()).thenReturn(Arrays.asList(users.get(1), users.get(3)));
+
+		List<User> all = shardedUserDao.getAll();
+		assertThat(all.size(), is(5));
+		for (int i = 0; i < all.size(); i++) {
+			assertThat(all.get(i).getId(), is(users.get(i).getId()));
+		}
+	}
+
+	@Test
+	public void getPageTakesLimitAfterMerge() {
+		when(shard0.getPage(null, 3)).thenReturn(Arrays.asList(users.get(0), users.get(3), users.get(4)));
+		when(shard1.getPage(null, 3)).thenReturn(Arrays.asList(users.get(1), users.get(2), users.get(5)));
+
+		List<User> page = shardedUserDao.getPage(null, 3);
+		assertThat(page.size(), is(3));
+		assertThat(page.get(2).getId(), is(users.get(2).getId()));
+	}
+
+	@Test
+	public void getCountSumsShards() {
+		when(shard0.getCount(CountMode.EXACT)).thenReturn(3);
+		when(shard1.getCount(CountMode.EXACT)).thenReturn(4);
+
+		assertThat(shardedUserDao.getCount(), is(7));
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void addShardMovesOnlyUsersOwnedByNewShard() {
+		// 기존 샤드 두 개에서 1000개의 절반씩 읽는다.
+		when(shard0.getPage(null, 500)).thenReturn(users);
+		UserDao shard2 = mock(UserDao.class);
+
+		shardedUserDao.addShard("shard2", shard2);
+
+		ArgumentCaptor<List<User>> copied = ArgumentCaptor.forClass((Class) List.class);
+		ArgumentCaptor<List<String>> deleted = ArgumentCaptor.forClass((Class) List.class);
+		verify(shard2).copyAll(copied.capture());
+		verify(shard0).deleteAll(deleted.capture());
+		verify(shard1, never()).deleteAll(anyCollectionOf(String.class));
+
+		Set<String> movedIds = new HashSet<String>();
+		for (User user : copied.getValue()) movedIds.add(user.getId());
+		assertThat(movedIds, is((Set<String>) new HashSet<String>(deleted.getValue())));
+		assertThat(movedIds.isEmpty(), is(false));
+		assertThat(movedIds.size() < users.size(), is(true));
+
+		// 옮겨진 사용자만 새 샤드에서 읽는다.
+		for (User user : users) {
+			shardedUserDao.get(user.getId());
+			if (movedIds.contains(user.getId())) verify(shard2).get(user.getId());
+			else verify(shard2, never()).get(user.getId());
+		}
+	}
+
+	@Test
+	public void rebalanceBlocksOnlyUsersBeingMoved() throws Exception {
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(shard0.getPage(null, 500)).thenAnswer(new Answer<List<User>>() {
+			public List<User> answer(InvocationOnMock invocation) throws InterruptedException {
+				reading.countDown();
+				release.await();
+				return users;
+			}
+		});
+		final UserDao shard2 = mock(UserDao.class);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			Future<?> rebalance = executor.submit(new Runnable() {
+				public void run() {
+					shardedUserDao.addShard("shard2", shard2);
+				}
+			});
+			reading.await();
+
+			// 기존 샤드에 남을 사용자는 리밸런싱 배치를 기다리지 않는다.
+			List<Future<?>> gets = new ArrayList<Future<?>>();
+			for (final User user : users) {
+				gets.add(executor.submit(new Runnable() {
+					public void run() {
+						shardedUserDao.get(user.getId());
+					}
+				}));
+			}
+			Thread.sleep(200);
+			Set<String> done = new HashSet<String>();
+			for (int i = 0; i < users.size(); i++) {
+				if (gets.get(i).isDone()) done.add(users.get(i).getId());
+			}
+			assertThat(done.isEmpty(), is(false));
+			assertThat(done.size() < users.size(), is(true));
+
+			release.countDown();
+			rebalance.get(5, TimeUnit.SECONDS);
+			for (Future<?> get : gets) get.get(5, TimeUnit.SECONDS);
+
+			// 먼저 끝난 사용자는 옮겨지지 않은 사용자다.
+			for (String id : done) verify(shard2, never()).get(id);
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void getChangedSinceStopsAtFullShard() {
+		User a = changed(users.get(0), 100);
+		User b = changed(users.get(1), 200);
+		User c = changed(users.get(2), 150);
+		User d = changed(users.get(3), 300);
+		when(shard0.getChangedSince(0, 2)).thenReturn(Arrays.asList(a, b));	// 200 뒤에 더 있을 수 있다.
+		when(shard1.getChangedSince(0, 2)).thenReturn(Arrays.asList(c, d));
+
+		List<User> changed = shardedUserDao.getChangedSince(0, 2);
+
+		// shard0이 200까지만 보여줬으므로 300인 d는 다음 페이지에서 돌려준다.
+		assertThat(changed.size(), is(2));
+		assertThat(changed.get(0).getId(), is(a.getId()));
+		assertThat(changed.get(1).getId(), is(c.getId()));
+	}
+
+	private User changed(User user, long updatedAt) {
+		user.setUpdatedAt(updatedAt);
+		return user;
+	}
+
+}
@@ -0,0 +1,344 @@
+package springbook.user.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * 실행 시간이 thresholdMillis를 넘는 SQL을 로그로 남기고, 가장 느렸던 worstSize개를 메모리에 보관하는 DataSource.
+ * UserDaoJdbc가 setDataSource()에서 만드는 JdbcTemplate과 TransactionTemplate이 이 DataSource를 쓰게 한다.
+ *  - 실행 시간에 커넥션을 얻는 데 기다린 시간을 더해서 판단한다. 대기 시간은 그 커넥션의 첫 문장에 붙는다.
+ *    upgradeLevels()가 느려졌을 때 조회, row별 수정, 커넥션 획득 중 어디서 시간이 드는지 구분할 수 있다.
+ *  - 조회는 ResultSet을 다 읽고 닫을 때까지를 실행 시간으로 보고, 읽은 row 수를 센다.
+ *  - 바인드 값 중 문자열(id, 이름, 비밀번호, 이메일)은 길이만 남기고 가린다. (redactBindValues)
+ *  - SQL을 실행한 UserDao 메소드는 느린 문장에서만 스택을 거슬러 찾으므로, 빠른 문장에는 비용이 들지 않는다.
+ *
+ */
+public class SlowQueryDataSource extends DelegatingDataSource {
+
+	private static final Log log = LogFactory.getLog(SlowQueryDataSource.class);
+	private static final Comparator<SlowStatement> BY_TOTAL_TIME = new Comparator<SlowStatement>() {
+		public int compare(SlowStatement s1, SlowStatement s2) {
+			return s1.getTotalMicros() < s2.getTotalMicros() ? -1 : (s1.getTotalMicros() == s2.getTotalMicros() ? 0 : 1);
+		}
+	};
+
+	private long thresholdNanos = 200 * 1000000L;
+	private int worstSize = 20;
+	private boolean redactBindValues = true;
+
+	// 가장 빠른 문장이 맨 앞에 오도록 해서, 꽉 차면 그것부터 밀어낸다.
+	private final PriorityQueue<SlowStatement> worst = new PriorityQueue<SlowStatement>(16, BY_TOTAL_TIME);
+	private final AtomicLong slowCount = new AtomicLong();
+	private final ConcurrentHashMap<String, Boolean> userDaoClasses = new ConcurrentHashMap<String, Boolean>();
+
+	public SlowQueryDataSource() {
+	}
+
+	public SlowQueryDataSource(DataSource targetDataSource) {
+		super(targetDataSource);
+	}
+
+	public void setThresholdMillis(long thresholdMillis) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+	}
+
+	public void setWorstSize(int worstSize) {
+		this.worstSize = worstSize;
+	}
+
+	public void setRedactBindValues(boolean redactBindValues) {
+		this.redactBindValues = redactBindValues;
+	}
+
+	public long getSlowCount() {
+		return slowCount.get();
+	}
+
+	/**
+	 * 지금까지 가장 느렸던 문장들. 느린 것부터 정렬한다.
+	 */
+	public List<SlowStatement> getWorstStatements() {
+		List<SlowStatement> statements;
+		synchronized (worst) {
+			statements = new ArrayList<SlowStatement>(worst);
+		}
+		Collections.sort(statements, Collections.reverseOrder(BY_TOTAL_TIME));
+		return statements;
+	}
+
+	public void clearWorstStatements() {
+		synchronized (worst) {
+			worst.clear();
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		Connection connection = getTargetDataSource().getConnection();
+		return timed(connection, System.nanoTime() - start);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		long start = System.nanoTime();
+		Connection connection = getTargetDataSource().getConnection(username, password);
+		return timed(connection, System.nanoTime() - start);
+	}
+
+	private Connection timed(Connection connection, long waitNanos) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new TimedConnection(connection, waitNanos));
+	}
+
+	private void record(SlowStatement statement) {
+		slowCount.incrementAndGet();
+		if (log.isWarnEnabled()) log.warn(statement);
+		synchronized (worst) {
+			if (worst.size() < worstSize) {
+				worst.add(statement);
+			} else if (worstSize > 0 && BY_TOTAL_TIME.compare(worst.peek(), statement) < 0) {
+				worst.poll();
+				worst.add(statement);
+			}
+		}
+	}
+
+	private String formatBinds(List<Object> binds) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < binds.size(); i++) {
+			if (i > 0) sb.append(", ");
+			Object value = binds.get(i);
+			if (value == null) {
+				sb.append("null");
+			} else if (value instanceof String) {
+				if (redactBindValues) sb.append("'***'(").append(((String) value).length()).append(')');
+				else sb.append('\'').append(value).append('\'');
+			} else if (value instanceof Number || value instanceof Boolean || value instanceof java.util.Date) {
+				sb.append(value);
+			} else {
+				sb.append(redactBindValues ? value.getClass().getSimpleName() : value);
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	// 스택에서 UserDao를 구현한 클래스의 가장 안쪽 메소드를 찾는다. 데코레이터보다 UserDaoJdbc가 먼저 나온다.
+	private String findOrigin() {
+		StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+		for (StackTraceElement element : stack) {
+			if (isUserDao(element.getClassName())) {
+				String className = element.getClassName();
+				return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName();
+			}
+		}
+		// UserDao 밖에서 직접 실행했으면 JDK, 스프링, 프록시를 빼고 처음 나오는 호출자를 쓴다.
+		for (StackTraceElement element : stack) {
+			String className = element.getClassName();
+			if (className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.") ||
+					className.startsWith("jdk.") || className.startsWith("com.sun.") ||
+					className.startsWith("org.springframework.") || className.contains("$Proxy") ||
+					className.startsWith(SlowQueryDataSource.class.getName() + "$") ||
+					className.equals(SlowQueryDataSource.class.getName())) continue;
+			return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName();
+		}
+		return "unknown";
+	}
+
+	private boolean isUserDao(String className) {
+		Boolean userDao = userDaoClasses.get(className);
+		if (userDao == null) {
+			try {
+				userDao = UserDao.class.isAssignableFrom(Class.forName(className, false, getClass().getClassLoader()));
+			} catch (Throwable e) {
+				userDao = false;
+			}
+			userDaoClasses.put(className, userDao);
+		}
+		return userDao;
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	// 한 번에 한 스레드만 사용하므로 안의 상태는 동기화하지 않는다.
+	private class TimedConnection implements InvocationHandler {
+		final Connection connection;
+		long pendingWaitNanos;
+
+		TimedConnection(Connection connection, long waitNanos) {
+			this.connection = connection;
+			this.pendingWaitNanos = waitNanos;
+		}
+
+		long takeWaitNanos() {
+			long wait = pendingWaitNanos;
+			pendingWaitNanos = 0;
+			return wait;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString")) return "Timed connection [" + connection + "]";
+			Object result = SlowQueryDataSource.invoke(method, connection, args);
+			if (name.equals("prepareStatement")) {
+				return wrap(PreparedStatement.class, (Statement) result, (Connection) proxy, (String) args[0]);
+			}
+			if (name.equals("prepareCall")) {
+				return wrap(CallableStatement.class, (Statement) result, (Connection) proxy, (String) args[0]);
+			}
+			if (name.equals("createStatement")) {
+				return wrap(Statement.class, (Statement) result, (Connection) proxy, null);
+			}
+			return result;
+		}
+
+		private Object wrap(Class<?> type, Statement statement, Connection proxy, String sql) {
+			return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+					new TimedStatement(this, proxy, statement, sql));
+		}
+	}
+
+	private class TimedStatement implements InvocationHandler {
+		final TimedConnection connection;
+		final Connection connectionProxy;
+		final Statement statement;
+		String sql;
+		final List<Object> binds = new ArrayList<Object>();
+		int batchSize = 0;
+		long queryStart = 0;	// 읽고 있는 ResultSet이 있을 때 조회를 시작한 시각
+		long queryRows;
+
+		TimedStatement(TimedConnection connection, Connection connectionProxy, Statement statement, String sql) {
+			this.connection = connection;
+			this.connectionProxy = connectionProxy;
+			this.statement = statement;
+			this.sql = sql;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString")) return "Timed statement [" + statement + "]";
+			if (name.equals("getConnection")) return connectionProxy;
+
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			} else if (name.equals("clearParameters")) {
+				binds.clear();
+			} else if (name.equals("addBatch")) {
+				if (args != null && args.length == 1) sql = sql == null ? (String) args[0] : sql + "; " + args[0];
+				batchSize++;
+			} else if (name.equals("close")) {
+				finishQuery();
+			} else if (name.startsWith("execute")) {
+				return execute(proxy, method, args);
+			}
+			return SlowQueryDataSource.invoke(method, statement, args);
+		}
+
+		private void bind(int index, Object value) {
+			while (binds.size() < index) binds.add(null);
+			binds.set(index - 1, value);
+		}
+
+		private Object execute(Object proxy, Method method, Object[] args) throws Throwable {
+			finishQuery();
+			if (args != null && args.length > 0 && args[0] instanceof String) sql = (String) args[0];
+			String name = method.getName();
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = SlowQueryDataSource.invoke(method, statement, args);
+			} catch (Throwable e) {
+				complete(start, -1, true);
+				throw e;
+			}
+			if (name.equals("executeQuery")) {
+				queryStart = start;
+				queryRows = 0;
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+						new CountingResultSet(this, (Statement) proxy, (ResultSet) result));
+			}
+			if (result instanceof int[]) {	// executeBatch
+				long rows = 0;
+				for (int count : (int[]) result) rows += count >= 0 ? count : 1;	// SUCCESS_NO_INFO는 1로 센다.
+				complete(start, rows, false);
+				batchSize = 0;
+			} else if (name.equals("execute")) {
+				complete(start, (Boolean) result ? -1 : statement.getUpdateCount(), false);
+			} else {
+				complete(start, ((Number) result).longValue(), false);
+			}
+			return result;
+		}
+
+		void finishQuery() {
+			if (queryStart == 0) return;
+			long start = queryStart;
+			queryStart = 0;
+			complete(start, queryRows, false);
+		}
+
+		private void complete(long start, long rows, boolean failed) {
+			long elapsed = System.nanoTime() - start;
+			long wait = connection.takeWaitNanos();
+			if (elapsed + wait < thresholdNanos) return;
+			record(new SlowStatement(System.currentTimeMillis(), sql, formatBinds(binds), batchSize, rows,
+					elapsed / 1000, wait / 1000, findOrigin(), failed));
+		}
+	}
+
+	private static class CountingResultSet implements InvocationHandler {
+		final TimedStatement owner;
+		final Statement statementProxy;
+		final ResultSet resultSet;
+
+		CountingResultSet(TimedStatement owner, Statement statementProxy, ResultSet resultSet) {
+			this.owner = owner;
+			this.statementProxy = statementProxy;
+			this.resultSet = resultSet;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString")) return "Counting result set [" + resultSet + "]";
+			if (name.equals("getStatement")) return statementProxy;
+			if (name.equals("close")) owner.finishQuery();
+			Object result = SlowQueryDataSource.invoke(method, resultSet, args);
+			if (name.equals("next") && (Boolean) result) owner.queryRows++;
+			return result;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SlowQueryDataSourceTest {
+
+	Connection physical;
+	PreparedStatement ps;
+	Statement st;
+	ResultSet rs;
+	DataSource target;
+	SlowQueryDataSource dataSource;
+
+	@Before
+	public void setUp() throws SQLException {
+		rs = mock(ResultSet.class);
+		ps = mock(PreparedStatement.class);
+		when(ps.executeQuery()).thenReturn(rs);
+		st = mock(Statement.class);
+		when(st.executeQuery(anyString())).thenReturn(rs);
+		physical = mock(Connection.class);
+		when(physical.createStatement()).thenReturn(st);
+		when(physical.getAutoCommit()).thenReturn(true);
+		when(physical.prepareStatement(anyString())).thenReturn(ps);
+		target = mock(DataSource.class);
+		when(target.getConnection()).thenReturn(physical);
+
+		dataSource = new SlowQueryDataSource(target);
+		dataSource.setThresholdMillis(0);
+	}
+
+	@Test
+	public void recordUpdateWithRedactedBinds() throws SQLException {
+		when(ps.executeUpdate()).thenReturn(1);
+
+		Connection c = dataSource.getConnection();
+		PreparedStatement statement = c.prepareStatement("update users set name = ?, login = ? where id = ?");
+		statement.setString(1, "박성철");
+		statement.setInt(2, 10);
+		statement.setString(3, "gyumee");
+		statement.executeUpdate();
+		statement.close();
+		c.close();
+
+		List<SlowStatement> worst = dataSource.getWorstStatements();
+		assertThat(worst.size(), is(1));
+		assertThat(worst.get(0).getSql(), is("update users set name = ?, login = ? where id = ?"));
+		assertThat(worst.get(0).getBinds(), is("['***'(3), 10, '***'(6)]"));
+		assertThat(worst.get(0).getRows(), is(1L));
+		assertThat(worst.get(0).getOrigin(), is("SlowQueryDataSourceTest.recordUpdateWithRedactedBinds"));
+	}
+
+	@Test
+	public void countQueryRowsUntilResultSetIsClosed() throws SQLException {
+		when(rs.next()).thenReturn(true, true, false);
+
+		Connection c = dataSource.getConnection();
+		PreparedStatement statement = c.prepareStatement("select id from users");
+		ResultSet result = statement.executeQuery();
+		while (result.next()) {
+		}
+		assertThat(dataSource.getSlowCount(), is(0L));
+		result.close();
+		statement.close();
+		c.close();
+
+		assertThat(dataSource.getSlowCount(), is(1L));
+		assertThat(dataSource.getWorstStatements().get(0).getRows(), is(2L));
+	}
+
+	@Test
+	public void fastStatementIsNotRecorded() throws SQLException {
+		dataSource.setThresholdMillis(1000);
+
+		Connection c = dataSource.getConnection();
+		c.prepareStatement("select id from users").executeQuery().close();
+		c.close();
+
+		assertThat(dataSource.getSlowCount(), is(0L));
+		assertThat(dataSource.getWorstStatements().size(), is(0));
+	}
+
+	@Test
+	public void keepOnlyWorstStatements() throws SQLException {
+		dataSource.setWorstSize(2);
+		final long[] sleeps = { 30, 1, 15 };
+		when(ps.executeUpdate()).thenAnswer(new Answer<Integer>() {
+			int call = 0;
+			public Integer answer(InvocationOnMock invocation) throws InterruptedException {
+				Thread.sleep(sleeps[call++]);
+				return 1;
+			}
+		});
+
+		Connection c = dataSource.getConnection();
+		for (int i = 0; i < sleeps.length; i++) {
+			PreparedStatement statement = c.prepareStatement("update users set login = login + 1");
+			statement.executeUpdate();
+			statement.close();
+		}
+		c.close();
+
+		List<SlowStatement> worst = dataSource.getWorstStatements();
+		assertThat(dataSource.getSlowCount(), is(3L));
+		assertThat(worst.size(), is(2));
+		assertTrue(worst.get(0).getElapsedMicros() >= 30000);
+		assertTrue(worst.get(1).getElapsedMicros() >= 15000);
+		assertTrue(worst.get(1).getElapsedMicros() < worst.get(0).getElapsedMicros());
+	}
+
+	@Test
+	public void recordConnectionWaitAndUserDaoOrigin() throws SQLException {
+		when(target.getConnection()).thenAnswer(new Answer<Connection>() {
+			public Connection answer(InvocationOnMock invocation) throws InterruptedException {
+				Thread.sleep(20);
+				return physical;
+			}
+		});
+		UserDaoJdbc userDao = new UserDaoJdbc();
+		userDao.setDataSource(dataSource);
+
+		userDao.getAll();
+
+		SlowStatement statement = dataSource.getWorstStatements().get(0);
+		assertThat(statement.getOrigin(), is("UserDaoJdbc.getAll"));
+		assertTrue(statement.getConnectionWaitMicros() >= 20000);
+		assertThat(statement.getSql(), is("select id, name, password, email, level, login, recommend, version, updated_at from users order by id"));
+		assertThat(statement.getRows(), is(0L));
+	}
+
+}
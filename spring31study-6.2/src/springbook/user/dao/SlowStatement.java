@@ -0,0 +1,83 @@
+package springbook.user.dao;
+
+/**
+ * SlowQueryDataSource가 기록한 느린 SQL 한 건. 시간의 단위는 마이크로초.
+ */
+public class SlowStatement {
+
+	private final long timestamp;
+	private final String sql;
+	private final String binds;
+	private final int batchSize;
+	private final long rows;
+	private final long elapsedMicros;
+	private final long connectionWaitMicros;
+	private final String origin;
+	private final boolean failed;
+
+	public SlowStatement(long timestamp, String sql, String binds, int batchSize, long rows,
+			long elapsedMicros, long connectionWaitMicros, String origin, boolean failed) {
+		this.timestamp = timestamp;
+		this.sql = sql;
+		this.binds = binds;
+		this.batchSize = batchSize;
+		this.rows = rows;
+		this.elapsedMicros = elapsedMicros;
+		this.connectionWaitMicros = connectionWaitMicros;
+		this.origin = origin;
+		this.failed = failed;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	// 마스킹된 바인드 값. 배치면 마지막 row의 값.
+	public String getBinds() {
+		return binds;
+	}
+
+	// 배치로 실행했을 때 row 수. 배치가 아니면 0.
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	// 조회한 row 수 또는 수정된 row 수. 알 수 없으면 -1.
+	public long getRows() {
+		return rows;
+	}
+
+	// 실행 시간. 조회는 ResultSet을 다 읽고 닫을 때까지의 시간이다.
+	public long getElapsedMicros() {
+		return elapsedMicros;
+	}
+
+	// 이 문장을 실행하기 위해 커넥션을 얻느라 기다린 시간. 커넥션의 첫 문장에만 붙는다.
+	public long getConnectionWaitMicros() {
+		return connectionWaitMicros;
+	}
+
+	public long getTotalMicros() {
+		return elapsedMicros + connectionWaitMicros;
+	}
+
+	// SQL을 실행한 UserDao 메소드 (예: UserDaoJdbc.upgradeLevels)
+	public String getOrigin() {
+		return origin;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public String toString() {
+		return "slow sql " + (getTotalMicros() / 1000) + "ms (exec=" + (elapsedMicros / 1000) +
+				"ms, connectionWait=" + (connectionWaitMicros / 1000) + "ms) rows=" + rows +
+				(batchSize > 0 ? " batch=" + batchSize : "") + (failed ? " FAILED" : "") +
+				" origin=" + origin + " sql=[" + sql + "] binds=" + binds;
+	}
+}
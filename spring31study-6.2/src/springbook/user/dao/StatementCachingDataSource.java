@@ -0,0 +1,304 @@
+package springbook.user.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * 물리 커넥션마다 PreparedStatement를 LRU로 캐시해두고 다시 사용하는 DataSource.
+ * UserDaoJdbc처럼 같은 SQL을 반복해서 실행하는 DAO가 호출마다 문장을 다시 준비(prepare)하지 않게 한다.
+ *  - 캐시는 물리 커넥션에 붙어 있으므로, 반납된 커넥션을 닫지 않고 maxIdleConnections개까지 보관해뒀다가
+ *    다시 빌려준다. (SimpleDriverDataSource처럼 풀이 없는 DataSource를 감싸도 캐시가 유지된다)
+ *  - 캐시된 PreparedStatement의 close()는 문장을 닫지 않고 파라미터를 지운 뒤 캐시로 돌려놓는다.
+ *  - 물리 커넥션을 닫을 때(보관 수 초과, maxIdleMillis 초과, close()) 캐시된 문장도 모두 닫는다.
+ *  - 커넥션당 statementCacheSize개를 넘으면 가장 오래 사용하지 않은 문장을 닫는다.
+ *  - DataSource를 받는 코드면 모두 적용된다. (JdbcTemplate, 이전 단계의 JdbcContext/StatementStrategy)
+ *  - 애플리케이션 종료 시 close()를 호출한다. (빈 설정의 destroy-method)
+ *
+ */
+public class StatementCachingDataSource extends DelegatingDataSource {
+
+	private int statementCacheSize = 50;
+	private int maxIdleConnections = 10;
+	private long maxIdleMillis = 5 * 60 * 1000;	// MySQL wait_timeout보다 짧게 잡는다.
+
+	// 최근에 반납된 커넥션부터 빌려준다. 캐시가 채워진 커넥션을 계속 사용하게 된다.
+	private final LinkedBlockingDeque<PhysicalConnection> idle = new LinkedBlockingDeque<PhysicalConnection>();
+	private volatile boolean closed = false;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public StatementCachingDataSource() {
+	}
+
+	public StatementCachingDataSource(DataSource targetDataSource) {
+		super(targetDataSource);
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	public void setMaxIdleMillis(long maxIdleMillis) {
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed) throw new SQLException("DataSource가 이미 닫혔습니다.");
+		PhysicalConnection physical;
+		while ((physical = idle.pollFirst()) != null) {
+			if (System.currentTimeMillis() - physical.idleSince < maxIdleMillis && !physical.connection.isClosed()) break;
+			physical.closeQuietly();
+		}
+		if (physical == null) physical = new PhysicalConnection(getTargetDataSource().getConnection());
+		return physical.lease();
+	}
+
+	// 사용자별 커넥션은 보관하지 않는다.
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getTargetDataSource().getConnection(username, password);
+	}
+
+	/**
+	 * 보관 중인 커넥션과 캐시된 문장을 모두 닫는다. 사용 중인 커넥션은 반납될 때 닫힌다.
+	 */
+	public void close() {
+		closed = true;
+		PhysicalConnection physical;
+		while ((physical = idle.pollFirst()) != null) {
+			physical.closeQuietly();
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	// 한 번에 한 스레드만 빌려 쓰므로 안의 상태는 동기화하지 않는다.
+	private class PhysicalConnection {
+		final Connection connection;
+		final Set<CachedStatement> leased = new HashSet<CachedStatement>();
+		final Map<String, CachedStatement> statements =
+				new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+					protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+						if (size() <= statementCacheSize) return false;
+						evictionCount.incrementAndGet();
+						eldest.getValue().evicted = true;
+						if (!eldest.getValue().inUse) eldest.getValue().closeQuietly();
+						return true;
+					}
+				};
+		long idleSince;
+
+		PhysicalConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		Connection lease() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new LogicalConnection(this));
+		}
+
+		PreparedStatement prepare(Connection logical, Method method, Object[] args) throws Throwable {
+			String key = method.getName() + Arrays.deepToString(args);
+			CachedStatement cached = statements.get(key);
+			if (cached != null && !cached.inUse) {
+				hitCount.incrementAndGet();
+				return cached.lease(logical);
+			}
+			missCount.incrementAndGet();
+			PreparedStatement ps = (PreparedStatement) invoke(method, connection, args);
+			if (cached != null) return ps;	// 같은 문장이 이미 사용 중이면 캐시하지 않은 문장을 준다.
+
+			cached = new CachedStatement(this, key, ps);
+			statements.put(key, cached);
+			return cached.lease(logical);
+		}
+
+		// 커넥션이 반납될 때 호출된다. 닫히지 않은 문장도 캐시로 돌려놓는다.
+		void release() {
+			for (CachedStatement statement : new HashSet<CachedStatement>(leased)) {
+				statement.giveBack();
+			}
+			try {
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				closeQuietly();
+				return;
+			}
+			idleSince = System.currentTimeMillis();
+			if (closed || idle.size() >= maxIdleConnections || !idle.offerFirst(this)) {
+				closeQuietly();
+			}
+		}
+
+		void closeQuietly() {
+			for (CachedStatement statement : statements.values()) {
+				statement.closeQuietly();
+			}
+			statements.clear();
+			try {
+				connection.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	private class LogicalConnection implements InvocationHandler {
+		final PhysicalConnection physical;
+		boolean closed = false;
+
+		LogicalConnection(PhysicalConnection physical) {
+			this.physical = physical;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString")) return "Cached statement connection [" + physical.connection + "]";
+			if (name.equals("unwrap") || name.equals("isWrapperFor")) {
+				return StatementCachingDataSource.invoke(method, physical.connection, args);
+			}
+			if (name.equals("isClosed")) return closed;
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					physical.release();
+				}
+				return null;
+			}
+			if (closed) throw new SQLException("Connection이 이미 닫혔습니다.");
+			if (name.equals("prepareStatement")) {
+				return physical.prepare((Connection) proxy, method, args);
+			}
+			return StatementCachingDataSource.invoke(method, physical.connection, args);
+		}
+	}
+
+	private static class CachedStatement {
+		final PhysicalConnection owner;
+		final String key;
+		final PreparedStatement statement;
+		boolean inUse = false;
+		boolean evicted = false;
+		StatementLease current;
+
+		CachedStatement(PhysicalConnection owner, String key, PreparedStatement statement) {
+			this.owner = owner;
+			this.key = key;
+			this.statement = statement;
+		}
+
+		// 빌려줄 때마다 새 프록시를 만들어서, 이미 close()한 프록시로는 다음 사용자의 문장을 건드리지 못하게 한다.
+		PreparedStatement lease(Connection logical) {
+			inUse = true;
+			owner.leased.add(this);
+			current = new StatementLease(this, logical);
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, current);
+		}
+
+		// 다음 사용자가 이전 실행의 설정을 물려받지 않도록 되돌려놓는다.
+		void giveBack() {
+			current.closed = true;
+			inUse = false;
+			owner.leased.remove(this);
+			if (evicted) {
+				closeQuietly();
+				return;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.setFetchSize(0);
+				statement.setMaxRows(0);
+				statement.setQueryTimeout(0);
+			} catch (SQLException e) {
+				owner.statements.remove(key);
+				closeQuietly();
+			}
+		}
+
+		void closeQuietly() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	private static class StatementLease implements InvocationHandler {
+		final CachedStatement cached;
+		final Connection logical;
+		boolean closed = false;
+
+		StatementLease(CachedStatement cached, Connection logical) {
+			this.cached = cached;
+			this.logical = logical;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString")) return "Cached statement [" + cached.statement + "]";
+			if (name.equals("isClosed")) return closed;
+			if (name.equals("close")) {
+				if (!closed) cached.giveBack();
+				return null;
+			}
+			if (closed) throw new SQLException("Statement가 이미 닫혔습니다.");
+			if (name.equals("getConnection")) return logical;
+			return StatementCachingDataSource.invoke(method, cached.statement, args);
+		}
+	}
+}
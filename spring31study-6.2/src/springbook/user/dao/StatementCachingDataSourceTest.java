@@ -0,0 +1,133 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class StatementCachingDataSourceTest {
+
+	static final String SQL1 = "select id from users where id = ?";
+	static final String SQL2 = "select count(*) from users";
+
+	Connection physical;
+	List<PreparedStatement> prepared;
+	StatementCachingDataSource dataSource;
+
+	@Before
+	public void setUp() throws SQLException {
+		prepared = new ArrayList<PreparedStatement>();
+		physical = mock(Connection.class);
+		when(physical.getAutoCommit()).thenReturn(true);
+		when(physical.prepareStatement(anyString())).thenAnswer(new Answer<PreparedStatement>() {
+			public PreparedStatement answer(InvocationOnMock invocation) {
+				PreparedStatement ps = mock(PreparedStatement.class);
+				prepared.add(ps);
+				return ps;
+			}
+		});
+		DataSource target = mock(DataSource.class);
+		when(target.getConnection()).thenReturn(physical);
+
+		dataSource = new StatementCachingDataSource(target);
+	}
+
+	private void execute(String sql) throws SQLException {
+		Connection c = dataSource.getConnection();
+		PreparedStatement ps = c.prepareStatement(sql);
+		ps.executeQuery();
+		ps.close();
+		c.close();
+	}
+
+	@Test
+	public void reuseStatementAcrossConnections() throws SQLException {
+		execute(SQL1);
+		execute(SQL1);
+		execute(SQL1);
+
+		verify(physical, times(1)).prepareStatement(SQL1);
+		verify(prepared.get(0), times(3)).executeQuery();
+		verify(prepared.get(0), never()).close();
+		verify(physical, never()).close();		// 커넥션도 닫지 않고 보관한다.
+		assertThat(dataSource.getHitCount(), is(2L));
+		assertThat(dataSource.getMissCount(), is(1L));
+	}
+
+	@Test
+	public void closedStatementProxyCannotBeUsed() throws SQLException {
+		Connection c = dataSource.getConnection();
+		PreparedStatement ps = c.prepareStatement(SQL1);
+		ps.close();
+
+		assertThat(ps.isClosed(), is(true));
+		try {
+			ps.executeQuery();
+		} catch (SQLException e) {
+			return;
+		}
+		throw new AssertionError("SQLException expected");
+	}
+
+	@Test
+	public void sameSqlInUseIsNotShared() throws SQLException {
+		Connection c = dataSource.getConnection();
+		PreparedStatement ps1 = c.prepareStatement(SQL1);
+		PreparedStatement ps2 = c.prepareStatement(SQL1);
+		ps2.close();
+		ps1.close();
+		c.close();
+
+		assertThat(prepared.size(), is(2));
+		verify(prepared.get(1)).close();	// 캐시되지 않은 문장은 실제로 닫힌다.
+		verify(prepared.get(0), never()).close();
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() throws SQLException {
+		dataSource.setStatementCacheSize(1);
+
+		execute(SQL1);
+		execute(SQL2);
+
+		verify(prepared.get(0)).close();
+		assertThat(dataSource.getEvictionCount(), is(1L));
+	}
+
+	@Test
+	public void closeStatementsWithPhysicalConnection() throws SQLException {
+		dataSource.setMaxIdleConnections(0);
+
+		execute(SQL1);
+
+		verify(prepared.get(0)).close();
+		verify(physical).close();
+	}
+
+	@Test
+	public void closeDataSource() throws SQLException {
+		execute(SQL1);
+		dataSource.close();
+
+		verify(prepared.get(0)).close();
+		verify(physical).close();
+	}
+
+}
@@ -0,0 +1,8 @@
+package springbook.user.dao;
+
+import springbook.user.domain.User;
+
+public interface UserCallback {
+
+	public void doWithUser(User user);
+}
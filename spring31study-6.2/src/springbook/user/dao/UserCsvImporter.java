@@ -0,0 +1,324 @@
+package springbook.user.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+/**
+ * 사용자 CSV 파일(id,name,password,email,level,login,recommend)을 한 줄씩 읽어서 등록한다.
+ *  - 파일 전체를 읽어두지 않고 batchSize개씩 모아서 UserDao.addAll()로 넣으므로, 줄 수와 관계없이 메모리 사용량이 일정하다.
+ *  - level이 비어 있으면 UserService.add()처럼 BASIC으로 등록한다. level은 숫자(1~3)나 이름(BASIC, SILVER, GOLD)으로 쓴다.
+ *  - 형식이 맞지 않는 줄은 줄 번호와 함께 로그를 남기고 건너뛴다. maxRejects를 넘으면 중단한다.
+ *  - progressInterval줄마다 지금까지 처리한 수와 초당 row 수를 로그로 남긴다.
+ *  - useLoadData를 켜면 파일을 MySQL LOAD DATA LOCAL INFILE로 바로 넘긴다. (userDao가 UserDaoJdbc여야 하고,
+ *    접속 URL에 allowLoadLocalInfile=true가 필요하다) LOAD DATA는 줄을 골라 건너뛰지 못하므로 먼저 파일을 훑어서
+ *    모든 줄이 올바를 때만 넘기고, 건너뛸 줄이 있으면 한 줄씩 등록한다. LOAD DATA는 이미 있는 id를 skipExisting과
+ *    관계없이 건너뛴다.
+ *  - 필드 안에 쉼표, 큰따옴표, 줄바꿈이 있으면 큰따옴표로 감싼다. 감싼 필드 안의 줄바꿈은 값의 일부이므로
+ *    레코드 하나가 여러 줄에 걸칠 수 있다. (로그의 줄 번호는 레코드 번호다)
+ *
+ */
+public class UserCsvImporter {
+
+	private static final Log log = LogFactory.getLog(UserCsvImporter.class);
+
+	private UserDao userDao;
+	private int batchSize = 1000;
+	private boolean hasHeader = true;
+	private boolean skipExisting = false;
+	private long maxRejects = 1000;
+	private long progressInterval = 100000;
+	private boolean useLoadData = false;
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setHasHeader(boolean hasHeader) {
+		this.hasHeader = hasHeader;
+	}
+
+	// 이미 있는 id는 addAllIfAbsent()로 건너뛴다. 꺼져 있으면 중복 id에서 예외가 난다.
+	public void setSkipExisting(boolean skipExisting) {
+		this.skipExisting = skipExisting;
+	}
+
+	public void setMaxRejects(long maxRejects) {
+		this.maxRejects = maxRejects;
+	}
+
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public void setUseLoadData(boolean useLoadData) {
+		this.useLoadData = useLoadData;
+	}
+
+	public Result importFile(final String path) throws IOException {
+		final long start = System.nanoTime();
+		if (useLoadData) {
+			if (!(userDao instanceof UserDaoJdbc)) {
+				throw new IllegalStateException("LOAD DATA는 UserDaoJdbc에서만 사용할 수 있습니다.");
+			}
+			long valid = countLoadableLines(path);
+			if (valid >= 0) {
+				int loaded = ((UserDaoJdbc) userDao).loadCsv(new File(path), hasHeader);
+				Result result = new Result(valid, loaded, 0, System.nanoTime() - start);
+				log.info(path + " " + result);
+				return result;
+			}
+			log.info(path + ": LOAD DATA로 넘길 수 없는 줄이 있어 한 줄씩 가져옵니다.");
+		}
+
+		final List<User> chunk = new ArrayList<User>(batchSize);
+		Result result = lineReadTemplate(path, new LineCallback<Result>() {
+			long lineNumber = 0;
+			public Result doSomethingWithLine(String line, Result progress) {
+				lineNumber++;
+				if (lineNumber == 1 && hasHeader) return progress;
+				if (line.trim().isEmpty()) return progress;
+
+				User user;
+				try {
+					user = parse(line);
+				} catch (IllegalArgumentException e) {
+					log.warn(path + ":" + lineNumber + " 건너뜀 - " + e.getMessage());
+					progress = progress.reject();
+					if (progress.getRejected() > maxRejects) {
+						throw new IllegalStateException(path + ": 잘못된 줄이 " + maxRejects + "개를 넘어 중단합니다.");
+					}
+					return progress;
+				}
+				chunk.add(user);
+				if (chunk.size() < batchSize) return progress;
+				return flush(chunk, progress, start);
+			}
+		}, new Result(0, 0, 0, 0));
+		if (!chunk.isEmpty()) result = flush(chunk, result, start);
+
+		result = result.finish(System.nanoTime() - start);
+		log.info(path + " " + result);
+		return result;
+	}
+
+	// 모든 줄이 parse()를 통과하면 사용자 수를, 건너뛸 줄(잘못된 줄이나 빈 줄)이 있으면 -1을 돌려준다.
+	private long countLoadableLines(String path) throws IOException {
+		return lineReadTemplate(path, new LineCallback<Long>() {
+			long lineNumber = 0;
+			public Long doSomethingWithLine(String line, Long count) {
+				lineNumber++;
+				if (count < 0 || (lineNumber == 1 && hasHeader)) return count;
+				try {
+					parse(line);
+					return count + 1;
+				} catch (IllegalArgumentException e) {
+					return -1L;
+				}
+			}
+		}, 0L);
+	}
+
+	private Result flush(List<User> chunk, Result progress, long start) {
+		int inserted;
+		if (skipExisting) {
+			inserted = userDao.addAllIfAbsent(chunk);
+		} else {
+			userDao.addAll(chunk);
+			inserted = chunk.size();
+		}
+		Result next = progress.add(chunk.size(), inserted);
+		chunk.clear();
+		if (progressInterval > 0 && next.getRead() / progressInterval != progress.getRead() / progressInterval) {
+			log.info(next.finish(System.nanoTime() - start));
+		}
+		return next;
+	}
+
+	/**
+	 * CSV 한 줄을 User로 바꾼다. 형식이 맞지 않으면 IllegalArgumentException.
+	 */
+	User parse(String line) {
+		List<String> fields = split(line);
+		if (fields.size() != 7) throw new IllegalArgumentException("컬럼 수가 7이 아닙니다: " + fields.size());
+		String id = required(fields.get(0), "id", 10);
+		String name = required(fields.get(1), "name", 20);
+		String password = required(fields.get(2), "password", 10);
+		String email = fields.get(3).isEmpty() ? null : required(fields.get(3), "email", 40);
+		Level level = level(fields.get(4));
+		int login = count(fields.get(5), "login");
+		int recommend = count(fields.get(6), "recommend");
+		return new User(id, name, password, email, level, login, recommend);
+	}
+
+	private static String required(String value, String column, int maxLength) {
+		if (value.isEmpty()) throw new IllegalArgumentException(column + "가 비어 있습니다.");
+		if (value.length() > maxLength) throw new IllegalArgumentException(column + "가 " + maxLength + "자를 넘습니다.");
+		return value;
+	}
+
+	private static Level level(String value) {
+		if (value.isEmpty()) return Level.BASIC;
+		try {
+			if (Character.isDigit(value.charAt(0))) return Level.valueOf(Integer.parseInt(value));
+			return Level.valueOf(value.toUpperCase());
+		} catch (AssertionError e) {	// Level.valueOf(int)는 모르는 값에 AssertionError를 던진다.
+			throw new IllegalArgumentException("알 수 없는 level: " + value);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("알 수 없는 level: " + value);
+		}
+	}
+
+	private static int count(String value, String column) {
+		if (value.isEmpty()) return 0;
+		try {
+			int count = Integer.parseInt(value);
+			if (count < 0) throw new IllegalArgumentException(column + "가 음수입니다: " + value);
+			return count;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(column + "가 숫자가 아닙니다: " + value);
+		}
+	}
+
+	// 큰따옴표로 감싼 필드 안의 쉼표와 두 번 쓴 큰따옴표("")를 처리한다.
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>(7);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) throw new IllegalArgumentException("큰따옴표가 닫히지 않았습니다.");
+		fields.add(field.toString().trim());
+		return fields;
+	}
+
+	private <T> T lineReadTemplate(String path, LineCallback<T> callback, T initVal) throws IOException {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"), 64 * 1024);
+			T res = initVal;
+			String line = null;
+			while ((line = readRecord(br)) != null) {
+				res = callback.doSomethingWithLine(line, res);
+			}
+			return res;
+		} finally {
+			if (br != null) {
+				try { br.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	// 레코드 하나를 읽는다. 큰따옴표 밖의 \n, \r\n, \r은 레코드의 끝이고, 큰따옴표 안의 줄바꿈은 그대로 둔다.
+	// 파일 끝이면 null.
+	private static String readRecord(BufferedReader reader) throws IOException {
+		StringBuilder record = new StringBuilder();
+		boolean quoted = false;
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (c == '"') {
+				quoted = !quoted;	// 감싼 필드 안의 ""는 두 번 바뀌므로 그대로 감싼 상태다.
+			} else if (!quoted && (c == '\n' || c == '\r')) {
+				if (c == '\r') {
+					reader.mark(1);
+					if (reader.read() != '\n') reader.reset();
+				}
+				return record.toString();
+			}
+			record.append((char) c);
+		}
+		return record.length() == 0 ? null : record.toString();
+	}
+
+	private interface LineCallback<T> {
+		T doSomethingWithLine(String line, T value);
+	}
+
+	/**
+	 * 가져오기 결과. 진행 중에는 지금까지의 값을 담는다.
+	 */
+	public static class Result {
+		private final long read;
+		private final long inserted;
+		private final long rejected;
+		private final long elapsedNanos;
+
+		Result(long read, long inserted, long rejected, long elapsedNanos) {
+			this.read = read;
+			this.inserted = inserted;
+			this.rejected = rejected;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		Result add(long read, long inserted) {
+			return new Result(this.read + read, this.inserted + inserted, rejected, elapsedNanos);
+		}
+
+		Result reject() {
+			return new Result(read, inserted, rejected + 1, elapsedNanos);
+		}
+
+		Result finish(long elapsedNanos) {
+			return new Result(read, inserted, rejected, elapsedNanos);
+		}
+
+		// 검증을 통과해서 DB로 보낸 row 수
+		public long getRead() {
+			return read;
+		}
+
+		// 실제로 등록된 row 수. skipExisting이면 이미 있던 id만큼 read보다 적다.
+		public long getInserted() {
+			return inserted;
+		}
+
+		public long getRejected() {
+			return rejected;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		public long getRowsPerSecond() {
+			return elapsedNanos == 0 ? 0 : read * 1000000000L / elapsedNanos;
+		}
+
+		public String toString() {
+			return "read=" + read + " inserted=" + inserted + " rejected=" + rejected +
+					" elapsed=" + getElapsedMillis() + "ms rate=" + getRowsPerSecond() + " rows/s";
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class UserCsvImporterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	UserDao userDao;
+	UserCsvImporter importer;
+
+	@Before
+	public void setUp() {
+		userDao = new InMemoryUserDao();
+		importer = new UserCsvImporter();
+		importer.setUserDao(userDao);
+		importer.setBatchSize(2);
+	}
+
+	private String write(String... lines) throws IOException {
+		return writeFile("users.csv", lines);
+	}
+
+	private String writeFile(String name, String... lines) throws IOException {
+		File file = folder.newFile(name);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			for (String line : lines) writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+		return file.getPath();
+	}
+
+	@Test
+	public void importInBatches() throws IOException {
+		String path = write(
+				"id,name,password,email,level,login,recommend",
+				"gyumee,박성철,springno1,user1@ksug.org,1,1,0",
+				"leegw700,이길원,springno2,user2@ksug.org,SILVER,55,10",
+				"bumjin,박범진,springno3,,gold,100,40");
+
+		UserCsvImporter.Result result = importer.importFile(path);
+
+		assertThat(result.getRead(), is(3L));
+		assertThat(result.getInserted(), is(3L));
+		assertThat(result.getRejected(), is(0L));
+		assertThat(userDao.getCount(), is(3));
+		assertThat(userDao.get("leegw700").getLevel(), is(Level.SILVER));
+		assertThat(userDao.get("bumjin").getLevel(), is(Level.GOLD));
+		assertThat(userDao.get("bumjin").getEmail(), is(nullValue()));
+	}
+
+	@Test
+	public void defaultLevelAndCounts() throws IOException {
+		importer.setHasHeader(false);
+		String path = write("gyumee,\"박, 성철\",springno1,user1@ksug.org,,,");
+
+		importer.importFile(path);
+
+		User user = userDao.get("gyumee");
+		assertThat(user.getName(), is("박, 성철"));
+		assertThat(user.getLevel(), is(Level.BASIC));
+		assertThat(user.getLogin(), is(0));
+		assertThat(user.getRecommend(), is(0));
+	}
+
+	@Test
+	public void rejectInvalidLines() throws IOException {
+		String path = write(
+				"id,name,password,email,level,login,recommend",
+				"gyumee,박성철,springno1,user1@ksug.org,1,1,0",
+				"toolongid123,이길원,springno2,user2@ksug.org,1,0,0",
+				"bumjin,박범진,springno3,user3@ksug.org,PLATINUM,0,0",
+				"joytouch,강명성,springno4,user4@ksug.org,1,-1,0",
+				"erwins,신승한",
+				"madnite1,이상호,springno5,user5@ksug.org,2,60,abc");
+
+		UserCsvImporter.Result result = importer.importFile(path);
+
+		assertThat(result.getRead(), is(1L));
+		assertThat(result.getRejected(), is(5L));
+		assertThat(userDao.getCount(), is(1));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void stopAfterMaxRejects() throws IOException {
+		importer.setMaxRejects(1);
+		String path = write(
+				"id,name,password,email,level,login,recommend",
+				"erwins,신승한",
+				"madnite1,이상호");
+
+		importer.importFile(path);
+	}
+
+	@Test
+	public void loadDataOnlyWhenEveryLineIsValid() throws IOException {
+		UserDaoJdbc userDaoJdbc = mock(UserDaoJdbc.class);
+		importer.setUserDao(userDaoJdbc);
+		importer.setUseLoadData(true);
+		String path = write(
+				"id,name,password,email,level,login,recommend",
+				"gyumee,박성철,springno1,user1@ksug.org,1,1,0",
+				"leegw700,이길원,springno2,user2@ksug.org,SILVER,55,10");
+		when(userDaoJdbc.loadCsv(new File(path), true)).thenReturn(1);
+
+		UserCsvImporter.Result result = importer.importFile(path);
+		assertThat(result.getRead(), is(2L));
+		assertThat(result.getInserted(), is(1L));	// 이미 있는 id는 LOAD DATA가 건너뛴다.
+
+		// 건너뛸 줄이 있으면 한 줄씩 등록한다.
+		String invalid = writeFile("invalid.csv",
+				"id,name,password,email,level,login,recommend",
+				"gyumee,박성철,springno1,user1@ksug.org,1,1,0",
+				"erwins,신승한");
+		result = importer.importFile(invalid);
+		assertThat(result.getRead(), is(1L));
+		assertThat(result.getRejected(), is(1L));
+		verify(userDaoJdbc, never()).loadCsv(new File(invalid), true);
+		verify(userDaoJdbc).addAll(anyCollectionOf(User.class));
+	}
+
+	@Test
+	public void skipExisting() throws IOException {
+		userDao.add(new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.GOLD, 1, 0));
+		importer.setSkipExisting(true);
+		String path = write(
+				"id,name,password,email,level,login,recommend",
+				"gyumee,박성철,springno1,user1@ksug.org,1,1,0",
+				"leegw700,이길원,springno2,user2@ksug.org,2,55,10");
+
+		UserCsvImporter.Result result = importer.importFile(path);
+
+		assertThat(result.getRead(), is(2L));
+		assertThat(result.getInserted(), is(1L));
+		assertThat(userDao.get("gyumee").getLevel(), is(Level.GOLD));
+	}
+
+}
@@ -1,6 +1,8 @@
 package springbook.user.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import springbook.user.domain.User;
 
@@ -8,7 +10,23 @@ public interface UserDao {
 	void add(User user);
 	User get(String id);
 	List<User> getAll();
+	Map<String, User> getAll(Collection<String> ids);
 	void deleteAll();
+	int deleteAll(Collection<String> ids);
 	int getCount();
+	int getCount(CountMode mode);
 	void update(User user1);
+	void addAll(Collection<User> users);
+	void updateAll(List<User> users);
+	void forEachUser(UserCallback callback);
+	void parallelScan(int partitions, UserCallback callback);
+	List<User> getPage(String afterId, int limit);
+	List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold);
+	List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold);
+	List<User> getChangedSince(long watermark, int limit);
+	void upsert(User user);
+	boolean addIfAbsent(User user);
+	void upsertAll(Collection<User> users);
+	void copyAll(Collection<User> users);
+	int addAllIfAbsent(Collection<User> users);
 }
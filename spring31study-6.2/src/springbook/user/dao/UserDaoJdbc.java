@@ -1,16 +1,47 @@
 package springbook.user.dao;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import springbook.user.domain.Level;
 import springbook.user.domain.User;
+import springbook.user.domain.UserField;
 
 /**
  * JDBC를 이용한 등록과 조회 기능이 있는 USerDao 클래스.
@@ -189,60 +220,707 @@ import springbook.user.domain.User;
  */
 public class UserDaoJdbc implements UserDao {
 
+	// 조회할 컬럼은 select * 대신 명시한다.
+	private static final String USER_COLUMNS = "id, name, password, email, level, login, recommend, version, updated_at";
+
+	// 새로 등록하는 row는 version 1로 시작한다. updated_at은 insertValuesSetter가 채운다.
+	private static final String INSERT_SQL =
+			"insert into users(id, name, password, email, level, login, recommend, version, updated_at) " +
+			"values(?,?,?,?,?,?,?,1,?)";
+	// 값이 모두 같으면 version과 updated_at을 그대로 둬서, 바뀌지 않은 사용자가 변경 피드에 나오지 않게 한다.
+	// MySQL은 set을 왼쪽부터 적용하므로 version과 updated_at을 다른 컬럼보다 먼저 계산한다.
+	private static final String UNCHANGED_BY_UPSERT =
+			"name = values(name) and password = values(password) and " +
+			"(email = values(email) or (email is null and values(email) is null)) and " +
+			"level = values(level) and login = values(login) and recommend = values(recommend)";
+	private static final String UPSERT_SQL = INSERT_SQL + " on duplicate key update " +
+			"version = case when " + UNCHANGED_BY_UPSERT + " then version else version + 1 end, " +
+			"updated_at = case when " + UNCHANGED_BY_UPSERT + " then updated_at else values(updated_at) end, " +
+			"name = values(name), password = values(password), email = values(email), level = values(level), " +
+			"login = values(login), recommend = values(recommend)";
+	private static final String INSERT_IF_ABSENT_SQL =
+			"insert ignore into users(id, name, password, email, level, login, recommend, version, updated_at) " +
+			"values(?,?,?,?,?,?,?,1,?)";
+	// 다른 DB에서 옮겨오는 사용자. version과 updated_at도 원래 값으로 덮어쓴다.
+	private static final String COPY_SQL =
+			"insert into users(id, name, password, email, level, login, recommend, version, updated_at) " +
+			"values(?,?,?,?,?,?,?,?,?) on duplicate key update " +
+			"name = values(name), password = values(password), email = values(email), level = values(level), " +
+			"login = values(login), recommend = values(recommend), " +
+			"version = values(version), updated_at = values(updated_at)";
+
+	private static final Log log = LogFactory.getLog(UserDaoJdbc.class);
+	// parallelScan()의 경계를 고를 때 범위 하나에 뽑을 id 표본 수
+	private static final int SCAN_SAMPLES_PER_PARTITION = 100;
+
 	private JdbcTemplate jdbcTemplate;
-	private RowMapper<User> userMapper = new RowMapper<User>() {
-		public User mapRow(ResultSet rs, int rowNum) throws SQLException {
-			User user = new User();
-			user.setId(rs.getString("id"));
-			user.setName(rs.getString("name"));
-			user.setPassword(rs.getString("password"));
-			user.setEmail(rs.getString("email"));
-			user.setLevel(Level.valueOf(rs.getInt("level")));
-			user.setLogin(rs.getInt("login"));
-			user.setRecommend(rs.getInt("recommend"));
-			return user;
+	private TransactionTemplate transactionTemplate;
+	private int batchSize = 1000;	// 한 번의 배치로 DB에 보낼 최대 row 수
+	private int inListSize = 500;	// getAll(ids)에서 하나의 in (...)에 넣을 최대 id 수
+	private int scanFetchSize = Integer.MIN_VALUE;	// MySQL은 MIN_VALUE일 때 row를 하나씩 스트리밍한다.
+	private long approximateCountStaleness = 60 * 1000;	// 통계 값으로 읽은 사용자 수를 캐시해둘 시간(ms)
+	private long changeFeedLagMillis = 5000;	// getChangedSince()가 아직 커밋되지 않았을 수 있다고 보고 건너뛰는 최근 시간(ms)
+	private int maxScanConcurrency = 10;	// parallelScan()이 동시에 쓰는 최대 커넥션 수. DataSource의 최대 커넥션 수에 맞춘다.
+	private volatile int approximateCount;
+	private volatile long approximateCountExpiresAt = 0;
+	// 드라이버가 배치의 row별 결과를 주는지. 첫 배치를 보내고 알게 된다. (null이면 아직 모른다)
+	private volatile Boolean batchRowCounts;
+	// INSERT_SQL의 values(?,?,?,?,?,?,?,1,?)에 User 값과 지금 시각을 채워준다.
+	private ParameterizedPreparedStatementSetter<User> insertValuesSetter =
+			new ParameterizedPreparedStatementSetter<User>() {
+		public void setValues(PreparedStatement ps, User user) throws SQLException {
+			ps.setString(1, user.getId());
+			ps.setString(2, user.getName());
+			ps.setString(3, user.getPassword());
+			ps.setString(4, user.getEmail());
+			ps.setInt(5, user.getLevel().intValue());
+			ps.setInt(6, user.getLogin());
+			ps.setInt(7, user.getRecommend());
+			ps.setLong(8, System.currentTimeMillis());
+		}
+	};
+	// COPY_SQL의 values(?,?,?,?,?,?,?,?,?)에 User 값을 version과 updatedAt까지 그대로 채워준다.
+	private ParameterizedPreparedStatementSetter<User> copyValuesSetter =
+			new ParameterizedPreparedStatementSetter<User>() {
+		public void setValues(PreparedStatement ps, User user) throws SQLException {
+			ps.setString(1, user.getId());
+			ps.setString(2, user.getName());
+			ps.setString(3, user.getPassword());
+			ps.setString(4, user.getEmail());
+			ps.setInt(5, user.getLevel().intValue());
+			ps.setInt(6, user.getLogin());
+			ps.setInt(7, user.getRecommend());
+			ps.setLong(8, user.getVersion());
+			ps.setLong(9, user.getUpdatedAt());
 		}
 	};
 	
 	public void setDataSource(DataSource dataSource) {
 		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		// users와 users_count를 같은 트랜잭션에서 수정하기 위해 사용한다.
+		// 이미 진행 중인 트랜잭션이 있으면 그 트랜잭션에 참여한다.
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+	
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	public void setInListSize(int inListSize) {
+		this.inListSize = inListSize;
+	}
+	
+	public void setScanFetchSize(int scanFetchSize) {
+		this.scanFetchSize = scanFetchSize;
+	}
+	
+	public void setApproximateCountStaleness(long approximateCountStaleness) {
+		this.approximateCountStaleness = approximateCountStaleness;
+	}
+	
+	// 가장 긴 쓰기 트랜잭션 시간과 애플리케이션 서버 사이의 시계 차이보다 길게 잡는다.
+	public void setChangeFeedLagMillis(long changeFeedLagMillis) {
+		this.changeFeedLagMillis = changeFeedLagMillis;
+	}
+	
+	public void setMaxScanConcurrency(int maxScanConcurrency) {
+		this.maxScanConcurrency = maxScanConcurrency;
 	}
 	
 	public UserDaoJdbc() {}
 	
 	public void add(final User user) {
-		this.jdbcTemplate.update(
-			"insert into users(id, name, password, email, level, login, recommend) " +
-				"values(?,?,?,?,?,?,?)", 
-				user.getId(), user.getName(), user.getPassword(), user.getEmail(), 
-				user.getLevel().intValue(), user.getLogin(), user.getRecommend());
+		this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				jdbcTemplate.update(INSERT_SQL,
+						user.getId(), user.getName(), user.getPassword(), user.getEmail(), 
+						user.getLevel().intValue(), user.getLogin(), user.getRecommend(), System.currentTimeMillis());
+				increaseCount(1);
+			}
+		});
 	}
 	
 	public User get(String id) {
-		return this.jdbcTemplate.queryForObject("select * from users where id = ?",
-			new Object[] {id}, userMapper);
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			return this.jdbcTemplate.queryForObject("select " + USER_COLUMNS + " from users where id = ?",
+				new Object[] {id}, new UserRowMapper());
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
 	}
 	
 	public void deleteAll() {
-		this.jdbcTemplate.update("delete from users");
+		this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				jdbcTemplate.update("delete from users");
+				jdbcTemplate.update("update users_count set cnt = 0 where id = 1");
+			}
+		});
+	}
+
+	// 여러 id의 사용자를 inListSize개씩 나눈 in (...) 삭제로 지우고, 실제로 삭제된 수를 돌려준다.
+	public int deleteAll(final Collection<String> ids) {
+		return this.transactionTemplate.execute(new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionStatus status) {
+				int deleted = 0;
+				List<Object> chunk = new ArrayList<Object>(Math.min(ids.size(), inListSize));
+				for (String id : ids) {
+					chunk.add(id);
+					if (chunk.size() == inListSize) {
+						deleted += deleteChunk(chunk);
+						chunk.clear();
+					}
+				}
+				if (!chunk.isEmpty()) deleted += deleteChunk(chunk);
+				increaseCount(-deleted);
+				return deleted;
+			}
+		});
+	}
+
+	private int deleteChunk(List<Object> ids) {
+		return this.jdbcTemplate.update(
+				"delete from users where id in (" + placeholders(ids.size()) + ")", ids.toArray());
 	}
 
 	public int getCount() {
-		return this.jdbcTemplate.queryForInt("select count(*) from users");
+		return getCount(CountMode.EXACT);
+	}
+
+	// EXACT는 카운터 테이블의 row 하나를 읽으므로 count(*)처럼 테이블 크기에 비례해서 느려지지 않는다.
+	// APPROXIMATE는 InnoDB 통계 값이라 오차가 있지만, staleness 동안은 DB에 가지도 않는다.
+	public int getCount(CountMode mode) {
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			if (mode == CountMode.APPROXIMATE) {
+				long now = System.currentTimeMillis();
+				if (now >= this.approximateCountExpiresAt) {
+					this.approximateCount = statisticsRowCount();
+					this.approximateCountExpiresAt = now + this.approximateCountStaleness;
+				}
+				return this.approximateCount;
+			}
+			return this.jdbcTemplate.queryForObject("select cnt from users_count where id = 1", Integer.class);
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	// InnoDB의 테이블 통계에 있는 대략의 row 수
+	protected int statisticsRowCount() {
+		return this.jdbcTemplate.queryForObject("select table_rows from information_schema.tables " +
+				"where table_schema = database() and table_name = 'users'", Integer.class);
+	}
+
+	private void increaseCount(int delta) {
+		this.jdbcTemplate.update("update users_count set cnt = cnt + ? where id = 1", delta);
 	}
 
 	public List<User> getAll() {
-		return this.jdbcTemplate.query("select * from users order by id", userMapper);
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			return this.jdbcTemplate.query("select " + USER_COLUMNS + " from users order by id", new UserRowMapper());
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	// id 순으로 afterId 다음부터 limit개를 가져온다. afterId가 null이면 첫 페이지.
+	// OFFSET을 쓰지 않고 id 인덱스로 바로 찾아가므로 테이블이 커져도 페이지 비용이 일정하다.
+	public List<User> getPage(String afterId, int limit) {
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			if (afterId == null) {
+				return this.jdbcTemplate.query("select " + USER_COLUMNS + " from users order by id limit ?",
+					new Object[] {limit}, new UserRowMapper());
+			}
+			return this.jdbcTemplate.query("select " + USER_COLUMNS + " from users where id > ? order by id limit ?",
+				new Object[] {afterId, limit}, new UserRowMapper());
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	// 전체 사용자를 리스트로 만들지 않고, forward-only 커서로 한 row씩 읽어서 콜백에 넘겨준다.
+	// MySQL 스트리밍 중에는 같은 커넥션으로 다른 쿼리를 실행할 수 없으므로 콜백에서 DAO를 호출하면 안 된다.
+	public void forEachUser(final UserCallback callback) {
+		this.jdbcTemplate.query(
+			streamingStatement("select " + USER_COLUMNS + " from users order by id"),
+			new RowCallbackHandler() {
+				private UserRowMapper userMapper = new UserRowMapper();
+				private int rowNum = 0;
+				public void processRow(ResultSet rs) throws SQLException {
+					callback.doWithUser(userMapper.mapRow(rs, rowNum++));
+				}
+			});
+	}
+
+	// id 범위를 partitions개로 나눠서, 범위마다 자기 커넥션으로 forEachUser()처럼 스트리밍하며 동시에 읽는다.
+	//  - 동시에 읽는 범위는 maxScanConcurrency개까지이고, 나머지 범위는 앞 범위가 끝나기를 기다린다.
+	//  - 범위마다 읽은 row 수와 걸린 시간, 초당 row 수를 로그로 남긴다.
+	//  - 콜백은 여러 스레드에서 동시에 불리므로 스레드 안전해야 한다. id 순서는 범위 안에서만 지켜진다.
+	//  - 범위마다 따로 커넥션을 얻으므로 호출한 쪽의 트랜잭션에 참여하지 않는다.
+	//  - 한 범위가 실패하면 나머지 범위를 멈추고, 모든 범위가 끝난 뒤 처음 실패한 예외를 던진다.
+	public void parallelScan(int partitions, final UserCallback callback) {
+		final List<String> bounds = partitionBounds(partitions);
+		final int ranges = bounds.size() + 1;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(ranges, maxScanConcurrency), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "user-dao-scan-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final AtomicBoolean failed = new AtomicBoolean();
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges);
+			for (int i = 0; i < ranges; i++) {
+				final int partition = i + 1;
+				final String from = i == 0 ? null : bounds.get(i - 1);
+				final String to = i == ranges - 1 ? null : bounds.get(i);
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						scanRange(partition, ranges, from, to, callback, failed);
+						return null;
+					}
+				}));
+			}
+
+			RuntimeException failure = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					failed.set(true);
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ScanAbortedException) continue;
+					if (e.getCause() instanceof Error) throw (Error) e.getCause();
+					if (failure == null) failure = e.getCause() instanceof RuntimeException ?
+							(RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+				}
+			}
+			if (failure != null) throw failure;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// [from, to) 범위를 읽는다. null인 경계는 열려 있다.
+	private void scanRange(int partition, int ranges, String from, String to,
+			final UserCallback callback, final AtomicBoolean failed) {
+		StringBuilder sql = new StringBuilder("select " + USER_COLUMNS + " from users");
+		List<Object> args = new ArrayList<Object>(2);
+		if (from != null) {
+			sql.append(" where id >= ?");
+			args.add(from);
+		}
+		if (to != null) {
+			sql.append(from == null ? " where" : " and").append(" id < ?");
+			args.add(to);
+		}
+		sql.append(" order by id");
+
+		final long[] rows = new long[1];
+		long start = System.nanoTime();
+		try {
+			this.jdbcTemplate.query(streamingStatement(sql.toString(), args.toArray()),
+				new RowCallbackHandler() {
+					private UserRowMapper userMapper = new UserRowMapper();
+					public void processRow(ResultSet rs) throws SQLException {
+						if (failed.get()) throw new ScanAbortedException();
+						callback.doWithUser(userMapper.mapRow(rs, (int) rows[0]++));
+					}
+				});
+		} catch (RuntimeException e) {
+			failed.set(true);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		log.info("parallelScan " + partition + "/" + ranges + " [" + (from == null ? "" : from) + ", " +
+				(to == null ? "" : to) + ") " + rows[0] + " rows, " + elapsed / 1000000 + "ms" +
+				(elapsed > 0 ? ", " + rows[0] * 1000000000L / elapsed + " rows/s" : ""));
+	}
+
+	// 범위를 나눌 경계 id를 최대 partitions - 1개 고른다.
+	// 범위마다 SCAN_SAMPLES_PER_PARTITION개쯤 되도록 id를 무작위로 뽑아 정렬하고, 같은 간격으로 경계를 고른다.
+	// 표본 쿼리는 id만 읽으므로 DB는 가장 작은 인덱스를 한 번 훑고 뽑힌 id만 정렬한다.
+	// 범위의 크기는 표본 오차만큼 차이가 난다. 사용자가 적으면 전체 id를 표본으로 쓴다.
+	List<String> partitionBounds(int partitions) {
+		List<String> bounds = new ArrayList<String>();
+		if (partitions <= 1) return bounds;
+		int count = getCount();
+		if (count == 0) return bounds;
+
+		double rate = (double) partitions * SCAN_SAMPLES_PER_PARTITION / count;
+		List<String> sample = rate >= 1 ?
+				this.jdbcTemplate.queryForList("select id from users order by id", String.class) :
+				this.jdbcTemplate.queryForList("select id from users where rand() < ? order by id", String.class, rate);
+		for (int i = 1; i < partitions; i++) {
+			int index = (int) ((long) i * sample.size() / partitions);
+			if (index == 0 || index >= sample.size()) continue;
+			String bound = sample.get(index);
+			if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) bounds.add(bound);
+		}
+		return bounds;
+	}
+
+	// 다른 범위가 실패해서 읽기를 멈출 때 쓴다.
+	private static class ScanAbortedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	// 레벨별 업그레이드 조건을 SQL로 보내서 조건을 만족하는 사용자만 읽어온다.
+	// 각 조건은 (level, login), (level, recommend) 인덱스의 범위 검색이 된다. (schema.sql 참고)
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) {
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			return this.jdbcTemplate.query(
+				"select " + USER_COLUMNS + " from users where level = ? and login >= ? " +
+				"union all " +
+				"select " + USER_COLUMNS + " from users where level = ? and recommend >= ?",
+				new Object[] {Level.BASIC.intValue(), minLoginForSilver, Level.SILVER.intValue(), minRecommendForGold},
+				new UserRowMapper());
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	// updated_at이 watermark보다 늦은 사용자를 (updated_at, id) 순으로 limit개쯤 가져온다. (idx_users_updated_at)
+	// 같은 updated_at의 사용자가 페이지 경계에서 나뉘지 않도록 마지막 updated_at의 나머지 사용자까지 붙여서 돌려주므로,
+	// 마지막 사용자의 updatedAt을 다음 watermark로 쓰면 된다.
+	//  - updated_at은 커밋 전에 애플리케이션 서버의 시각으로 찍힌다. 늦게 커밋된 변경을 watermark가 먼저 지나가지
+	//    않도록, 최근 changeFeedLagMillis 안에 찍힌 변경은 다음 호출까지 미룬다. (그만큼 피드가 늦다)
+	//  - 삭제된 사용자는 피드에 나오지 않는다. 삭제를 알아야 하면 전체를 다시 읽어서 비교한다.
+	public List<User> getChangedSince(long watermark, int limit) {
+		long until = System.currentTimeMillis() - changeFeedLagMillis;
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			List<User> changed = this.jdbcTemplate.query(
+				"select " + USER_COLUMNS + " from users where updated_at > ? and updated_at <= ? " +
+				"order by updated_at, id limit ?",
+				new Object[] {watermark, until, limit}, new UserRowMapper());
+			if (changed.size() < limit || changed.isEmpty()) return changed;
+
+			User last = changed.get(changed.size() - 1);
+			changed.addAll(this.jdbcTemplate.query(
+				"select " + USER_COLUMNS + " from users where updated_at = ? and id > ? order by id",
+				new Object[] {last.getUpdatedAt(), last.getId()}, new UserRowMapper()));
+			return changed;
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	// 레벨 업그레이드를 레벨마다 update문 하나로 DB 안에서 처리한다.
+	// 업그레이드한 row에 runId를 표시해두고 다시 읽어서, 업그레이드된 사용자를 바뀐 레벨로 돌려준다.
+	// 높은 레벨부터 올려야 방금 SILVER가 된 사용자가 같은 실행에서 GOLD까지 올라가지 않는다.
+	public List<User> upgradeLevels(final String runId, final int minLoginForSilver, final int minRecommendForGold) {
+		return this.transactionTemplate.execute(new TransactionCallback<List<User>>() {
+			public List<User> doInTransaction(TransactionStatus status) {
+				long now = System.currentTimeMillis();
+				jdbcTemplate.update("update users set level = ?, upgrade_run = ?, version = version + 1, updated_at = ? " +
+						"where level = ? and recommend >= ?",
+						Level.GOLD.intValue(), runId, now, Level.SILVER.intValue(), minRecommendForGold);
+				jdbcTemplate.update("update users set level = ?, upgrade_run = ?, version = version + 1, updated_at = ? " +
+						"where level = ? and login >= ?",
+						Level.SILVER.intValue(), runId, now, Level.BASIC.intValue(), minLoginForSilver);
+				return jdbcTemplate.query("select " + USER_COLUMNS + " from users where upgrade_run = ? order by id",
+						new Object[] {runId}, new UserRowMapper());
+			}
+		});
+	}
+
+	private PreparedStatementCreator streamingStatement(final String sql, final Object... args) {
+		return new PreparedStatementCreator() {
+			public PreparedStatement createPreparedStatement(Connection c) throws SQLException {
+				PreparedStatement ps = c.prepareStatement(sql,
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				ps.setFetchSize(scanFetchSize);
+				for (int i = 0; i < args.length; i++) ps.setObject(i + 1, args[i]);
+				return ps;
+			}
+		};
 	}
 
+	// 바뀐 컬럼만 set에 넣는다. 바뀐 것이 없으면 DB에 가지 않는다.
 	@Override
 	public void update(User user) {
-		this.jdbcTemplate.update(
-				"update users set name=?, password=?, email=?, level=?, login=?, "
-				+ "recommend=? where id=?",
-					user.getName(), user.getPassword(), user.getEmail(),
-					user.getLevel().intValue(), user.getLogin(),
-					user.getRecommend(), user.getId());
+		Set<UserField> changed = user.getChangedFields();
+		if (changed.isEmpty()) return;
+		
+		List<Object> values = new ArrayList<Object>(changed.size() + 2);
+		for (UserField field : changed) values.add(columnValue(user, field));
+		values.add(System.currentTimeMillis());
+		values.add(user.getId());
+		this.jdbcTemplate.update(updateSql(changed), values.toArray());
+		clearChangesAfterCommit(Collections.singletonList(user));
+	}
+
+	// 바뀐 컬럼과 함께 version을 올리고 updated_at을 바꾼다. 마지막 두 파라미터는 updated_at과 id.
+	private String updateSql(Set<UserField> changed) {
+		StringBuilder sql = new StringBuilder("update users set ");
+		boolean first = true;
+		for (UserField field : changed) {
+			if (!first) sql.append(", ");
+			sql.append(columnName(field)).append("=?");
+			first = false;
+		}
+		return sql.append(", version=version+1, updated_at=? where id=?").toString();
+	}
+
+	private String columnName(UserField field) {
+		switch (field) {
+		case NAME: return "name";
+		case PASSWORD: return "password";
+		case EMAIL: return "email";
+		case LEVEL: return "level";
+		case LOGIN: return "login";
+		case RECOMMEND: return "recommend";
+		default: throw new AssertionError("Unknown field: " + field);
+		}
+	}
+
+	private Object columnValue(User user, UserField field) {
+		switch (field) {
+		case NAME: return user.getName();
+		case PASSWORD: return user.getPassword();
+		case EMAIL: return user.getEmail();
+		case LEVEL: return user.getLevel().intValue();
+		case LOGIN: return user.getLogin();
+		case RECOMMEND: return user.getRecommend();
+		default: throw new AssertionError("Unknown field: " + field);
+		}
+	}
+
+	// 여러 사용자를 batchSize 단위의 JDBC 배치로 나눠서 등록한다.
+	// MySQL은 URL에 rewriteBatchedStatements=true를 주면 multi-row insert로 바꿔서 보낸다.
+	public void addAll(final Collection<User> users) {
+		this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				insertAll(users);
+				// rewriteBatchedStatements를 쓰면 row별 update count를 알 수 없으므로 사용자 수만큼 늘린다.
+				increaseCount(users.size());
+			}
+		});
+	}
+
+	// UserCsvImporter 형식(id,name,password,email,level,login,recommend)의 CSV 파일을 LOAD DATA LOCAL INFILE로 등록한다.
+	// UserCsvImporter.parse()와 같게 읽는다. 필드 앞뒤의 공백을 지우고, 백슬래시는 이스케이프가 아닌 글자로 보고,
+	// CRLF 줄바꿈도 받는다. 비어 있는 level은 BASIC, 비어 있는 login/recommend는 0으로 넣고, level은 이름으로도 쓸 수 있다.
+	// 줄마다 검증하지는 않으므로 UserCsvImporter가 먼저 검증한 파일만 넘긴다. LOCAL이므로 이미 있는 id는 건너뛴다.
+	// 접속 URL에 allowLoadLocalInfile=true가 필요하다.
+	public int loadCsv(File file, final boolean hasHeader) {
+		final String path = file.getAbsolutePath().replace("\\", "\\\\").replace("'", "\\'");
+		return this.transactionTemplate.execute(new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionStatus status) {
+				int loaded = jdbcTemplate.update("load data local infile '" + path + "' into table users " +
+						"character set utf8 fields terminated by ',' optionally enclosed by '\"' escaped by '' " +
+						"lines terminated by '\\n' " + (hasHeader ? "ignore 1 lines " : "") +
+						"(@id, @name, @password, @email, @level, @login, @recommend) " +
+						"set id = trim(@id), name = trim(@name), password = trim(@password), " +
+						"email = nullif(trim(@email), ''), level = " + levelFromCsv("trim(@level)") + ", " +
+						"login = if(trim(@login) = '', 0, trim(@login)), " +
+						"recommend = if(trim(trim(trailing '\\r' from @recommend)) = '', 0, trim(trim(trailing '\\r' from @recommend))), " +
+						"version = 1, updated_at = " + System.currentTimeMillis());
+				increaseCount(loaded);
+				return loaded;
+			}
+		});
+	}
+
+	// CSV의 level 값(비어 있거나, 숫자나, 대소문자를 가리지 않는 이름)을 DB 값으로 바꾸는 식
+	private String levelFromCsv(String value) {
+		StringBuilder sql = new StringBuilder("case upper(").append(value).append(") when '' then ")
+				.append(Level.BASIC.intValue());
+		for (Level level : Level.values()) {
+			sql.append(" when '").append(level.name()).append("' then ").append(level.intValue());
+		}
+		return sql.append(" else ").append(value).append(" end").toString();
+	}
+
+	private void insertAll(Collection<User> users) {
+		this.jdbcTemplate.batchUpdate(INSERT_SQL, users, this.batchSize, insertValuesSetter);
+	}
+
+	// 여러 사용자의 수정 내용을 batchSize 단위의 JDBC 배치로 반영한다.
+	// 바뀐 컬럼 조합이 같은 사용자끼리 묶어서 조합마다 하나의 update문으로 배치를 만든다.
+	public void updateAll(List<User> users) {
+		Map<Set<UserField>, List<User>> groups = new LinkedHashMap<Set<UserField>, List<User>>();
+		for (User user : users) {
+			Set<UserField> changed = user.getChangedFields();
+			if (changed.isEmpty()) continue;
+			List<User> group = groups.get(changed);
+			if (group == null) {
+				group = new ArrayList<User>();
+				groups.put(changed, group);
+			}
+			group.add(user);
+		}
+		
+		for (Map.Entry<Set<UserField>, List<User>> group : groups.entrySet()) {
+			final Set<UserField> changed = group.getKey();
+			this.jdbcTemplate.batchUpdate(updateSql(changed), group.getValue(), this.batchSize,
+				new ParameterizedPreparedStatementSetter<User>() {
+					public void setValues(PreparedStatement ps, User user) throws SQLException {
+						int index = 1;
+						for (UserField field : changed) {
+							ps.setObject(index++, columnValue(user, field));
+						}
+						ps.setLong(index++, System.currentTimeMillis());
+						ps.setString(index, user.getId());
+					}
+				});
+			clearChangesAfterCommit(group.getValue());
+		}
+	}
+
+	// 트랜잭션 안이면 커밋된 뒤에 변경 표시를 지운다. 롤백되면 바뀐 필드가 그대로 남아서 같은 오브젝트로 다시 저장할 수 있다.
+	// (저장한 뒤 커밋 전에 같은 오브젝트를 또 바꿨다면 커밋 전에 다시 update()해야 한다)
+	private void clearChangesAfterCommit(final Collection<User> users) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			for (User user : users) user.clearChanges();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			public void afterCommit() {
+				for (User user : users) user.clearChanges();
+			}
+		});
+	}
+
+	// 없으면 등록하고 있으면 수정한다. 중복 키 예외를 거치지 않고 한 번의 왕복으로 처리한다.
+	// affected rows가 1이면 새로 등록된 것이다. (MySQL URL에 useAffectedRows=true 필요. 수정이면 2, 변경 없으면 0)
+	public void upsert(final User user) {
+		this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				int affected = jdbcTemplate.update(UPSERT_SQL,
+						user.getId(), user.getName(), user.getPassword(), user.getEmail(), 
+						user.getLevel().intValue(), user.getLogin(), user.getRecommend(), System.currentTimeMillis());
+				if (affected == 1) increaseCount(1);
+			}
+		});
+	}
+
+	// 같은 id가 없을 때만 등록하고, 등록했는지 여부를 돌려준다.
+	public boolean addIfAbsent(final User user) {
+		return this.transactionTemplate.execute(new TransactionCallback<Boolean>() {
+			public Boolean doInTransaction(TransactionStatus status) {
+				int affected = jdbcTemplate.update(INSERT_IF_ABSENT_SQL,
+						user.getId(), user.getName(), user.getPassword(), user.getEmail(), 
+						user.getLevel().intValue(), user.getLogin(), user.getRecommend(), System.currentTimeMillis());
+				if (affected == 1) increaseCount(1);
+				return affected == 1;
+			}
+		});
+	}
+
+	public void upsertAll(Collection<User> users) {
+		batchInsertCounting(UPSERT_SQL, users, insertValuesSetter);
+	}
+
+	// ShardedUserDao가 리밸런싱할 때 쓴다. 옮기는 것은 변경이 아니므로 변경 피드에 나오지 않는다.
+	public void copyAll(Collection<User> users) {
+		batchInsertCounting(COPY_SQL, users, copyValuesSetter);
+	}
+
+	// 새로 등록된 사용자 수를 돌려준다.
+	public int addAllIfAbsent(Collection<User> users) {
+		return batchInsertCounting(INSERT_IF_ABSENT_SQL, users, insertValuesSetter);
+	}
+
+	// batchSize 단위로 나눠 등록하고, 새로 등록된 수만큼 users_count를 늘린다.
+	private int batchInsertCounting(final String sql, final Collection<User> users,
+			final ParameterizedPreparedStatementSetter<User> valuesSetter) {
+		return this.transactionTemplate.execute(new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionStatus status) {
+				int inserted = 0;
+				List<User> chunk = new ArrayList<User>(Math.min(users.size(), batchSize));
+				for (User user : users) {
+					chunk.add(user);
+					if (chunk.size() == batchSize) {
+						inserted += batchInsertChunk(sql, chunk, valuesSetter);
+						chunk.clear();
+					}
+				}
+				if (!chunk.isEmpty()) inserted += batchInsertChunk(sql, chunk, valuesSetter);
+				increaseCount(inserted);
+				return inserted;
+			}
+		});
+	}
+
+	// 새로 등록된 수는 배치의 row별 결과로 센다. useAffectedRows=true이면 새로 등록된 row는 1, 이미 있던 row는
+	// 바뀌었으면 2, 그대로이거나 무시되면 0이므로, 한 배치에 같은 id가 두 번 있어도 1은 한 번만 나온다.
+	// rewriteBatchedStatements로 드라이버가 배치를 multi-row insert로 바꾸면 row별 결과 대신 SUCCESS_NO_INFO를 주므로,
+	// 그런 드라이버일 때만 배치 전에 잠그지 않고 기존 id 수를 읽어두고, 중복을 뺀 id 수에서 뺀다. (이때는 겹치는 id를
+	// 동시에 등록하면 그만큼 어긋날 수 있다. for update로 잠그면 없는 id에 갭 락이 걸려서 겹치는 범위를 동시에 등록할 때
+	// 데드락이 난다) row별 결과를 주는 드라이버는 첫 배치 뒤로는 미리 세지 않으므로 추가 왕복이 없다.
+	private int batchInsertChunk(String sql, List<User> chunk, ParameterizedPreparedStatementSetter<User> valuesSetter) {
+		Set<String> ids = new LinkedHashSet<String>();
+		for (User user : chunk) ids.add(user.getId());
+		Integer existing = Boolean.TRUE.equals(this.batchRowCounts) ? null : existingUserCount(ids);
+
+		int inserted = 0;
+		boolean noInfo = false;
+		for (int[] counts : this.jdbcTemplate.batchUpdate(sql, chunk, chunk.size(), valuesSetter)) {
+			for (int count : counts) {
+				if (count == Statement.SUCCESS_NO_INFO) noInfo = true;
+				else if (count == 1) inserted++;
+			}
+		}
+		if (!noInfo) {
+			this.batchRowCounts = Boolean.TRUE;
+			return inserted;
+		}
+		if (existing == null) throw new IllegalStateException("배치의 row별 결과를 주던 드라이버가 SUCCESS_NO_INFO를 돌려줬습니다.");
+		this.batchRowCounts = Boolean.FALSE;
+		return ids.size() - existing;
+	}
+
+	// ids 중에 이미 등록된 사용자 수
+	protected int existingUserCount(Collection<String> ids) {
+		return this.jdbcTemplate.queryForObject(
+				"select count(*) from users where id in (" + placeholders(ids.size()) + ")", ids.toArray(), Integer.class);
+	}
+
+	// 여러 id의 사용자를 inListSize개씩 나눈 in (...) 조회로 한꺼번에 가져온다.
+	// 없는 id는 예외 없이 결과에서 빠진다.
+	public Map<String, User> getAll(Collection<String> ids) {
+		boolean previous = ReadWriteRoutingDataSource.beginRead();
+		try {
+			Map<String, User> users = new LinkedHashMap<String, User>();
+			List<Object> chunk = new ArrayList<Object>(Math.min(ids.size(), inListSize));
+			for (String id : ids) {
+				chunk.add(id);
+				if (chunk.size() == inListSize) {
+					getAllInto(chunk, users);
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty()) getAllInto(chunk, users);
+			return users;
+		} finally {
+			ReadWriteRoutingDataSource.endRead(previous);
+		}
+	}
+
+	private void getAllInto(List<Object> ids, Map<String, User> users) {
+		List<User> found = this.jdbcTemplate.query(
+				"select " + USER_COLUMNS + " from users where id in (" + placeholders(ids.size()) + ")",
+				ids.toArray(), new UserRowMapper());
+		for (User user : found) users.put(user.getId(), user);
+	}
+
+	private String placeholders(int count) {
+		StringBuilder sb = new StringBuilder(count * 2);
+		for (int i = 0; i < count; i++) {
+			sb.append(i == 0 ? "?" : ",?");
+		}
+		return sb.toString();
 	}
 	
-}
+}
\ No newline at end of file
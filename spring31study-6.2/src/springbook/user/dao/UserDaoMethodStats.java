@@ -0,0 +1,77 @@
+package springbook.user.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserDao 메소드 하나의 호출 수, 에러 수, 처리한 row 수, 지연 시간 분포.
+ */
+public class UserDaoMethodStats implements UserDaoMethodStatsMBean {
+
+	private final String method;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong errorCount = new AtomicLong();
+	private final AtomicLong rowCount = new AtomicLong();
+
+	public UserDaoMethodStats(String method) {
+		this.method = method;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	// startNanos는 호출을 시작할 때 System.nanoTime()으로 잰 값.
+	public void record(long startNanos, long rows) {
+		latency.record((System.nanoTime() - startNanos) / 1000);
+		rowCount.addAndGet(rows);
+	}
+
+	public void recordError(long startNanos) {
+		latency.record((System.nanoTime() - startNanos) / 1000);
+		errorCount.incrementAndGet();
+	}
+
+	public long getCallCount() {
+		return latency.getTotalCount();
+	}
+
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	public double getMeanMicros() {
+		return latency.getMean();
+	}
+
+	public long getP50Micros() {
+		return latency.getValueAtPercentile(50);
+	}
+
+	public long getP99Micros() {
+		return latency.getValueAtPercentile(99);
+	}
+
+	public long getP999Micros() {
+		return latency.getValueAtPercentile(99.9);
+	}
+
+	public long getMaxMicros() {
+		return latency.getMax();
+	}
+
+	public void reset() {
+		latency.reset();
+		errorCount.set(0);
+		rowCount.set(0);
+	}
+
+	public String toString() {
+		return method + " calls=" + getCallCount() + " errors=" + getErrorCount() + " rows=" + getRowCount() +
+				" mean=" + Math.round(getMeanMicros()) + "us p50=" + getP50Micros() + "us p99=" + getP99Micros() +
+				"us p999=" + getP999Micros() + "us max=" + getMaxMicros() + "us";
+	}
+}
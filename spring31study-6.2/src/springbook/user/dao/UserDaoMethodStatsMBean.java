@@ -0,0 +1,16 @@
+package springbook.user.dao;
+
+/**
+ * JMX로 공개하는 UserDao 메소드별 통계. 지연 시간의 단위는 마이크로초.
+ */
+public interface UserDaoMethodStatsMBean {
+	long getCallCount();
+	long getErrorCount();
+	long getRowCount();
+	double getMeanMicros();
+	long getP50Micros();
+	long getP99Micros();
+	long getP999Micros();
+	long getMaxMicros();
+	void reset();
+}
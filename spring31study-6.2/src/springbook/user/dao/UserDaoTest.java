@@ -2,9 +2,22 @@ package springbook.user.dao;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
@@ -14,10 +27,16 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
 import org.springframework.jdbc.support.SQLExceptionTranslator;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import springbook.user.domain.Level;
 import springbook.user.domain.User;
@@ -214,4 +233,487 @@ public class UserDaoTest {
 		checkSameUser(user2, user2Update);
 	}
 	
+	@Test
+	public void addAll() {
+		dao.deleteAll();
+		
+		dao.addAll(Arrays.asList(user1, user2, user3));
+		assertThat(dao.getCount(), is(3));
+		
+		List<User> users = dao.getAll();
+		checkSameUser(user3, users.get(0));
+		checkSameUser(user1, users.get(1));
+		checkSameUser(user2, users.get(2));
+	}
+	
+	@Test
+	public void updateAll() {
+		dao.deleteAll();
+		
+		dao.add(user1);
+		dao.add(user2);
+		dao.add(user3);		// 수정하지 않을 사용자
+		
+		user1.setLevel(Level.SILVER);
+		user1.setLogin(50);
+		user2.setLevel(Level.GOLD);
+		user2.setRecommend(30);
+		dao.updateAll(Arrays.asList(user1, user2));
+		
+		checkSameUser(user1, dao.get(user1.getId()));
+		checkSameUser(user2, dao.get(user2.getId()));
+		checkSameUser(user3, dao.get(user3.getId()));
+	}
+	
+	@Test
+	public void forEachUser() {
+		dao.deleteAll();
+		dao.add(user1);
+		dao.add(user2);
+		dao.add(user3);
+		
+		final List<User> users = new ArrayList<User>();
+		dao.forEachUser(new UserCallback() {
+			public void doWithUser(User user) {
+				users.add(user);
+			}
+		});
+		
+		assertThat(users.size(), is(3));
+		checkSameUser(user3, users.get(0));
+		checkSameUser(user1, users.get(1));
+		checkSameUser(user2, users.get(2));
+	}
+	
+	@Test
+	public void getPage() {
+		dao.deleteAll();
+		dao.add(user1);		// Id: gyumee
+		dao.add(user2);		// Id: leegw700
+		dao.add(user3);		// Id: bumjin
+		
+		List<User> page1 = dao.getPage(null, 2);
+		assertThat(page1.size(), is(2));
+		checkSameUser(user3, page1.get(0));
+		checkSameUser(user1, page1.get(1));
+		
+		List<User> page2 = dao.getPage(page1.get(1).getId(), 2);
+		assertThat(page2.size(), is(1));
+		checkSameUser(user2, page2.get(0));
+		
+		List<User> page3 = dao.getPage(page2.get(0).getId(), 2);
+		assertThat(page3.size(), is(0));
+	}
+	
+	@Test
+	public void upsert() {
+		dao.deleteAll();
+		
+		dao.upsert(user1);		// 없으면 등록
+		assertThat(dao.getCount(), is(1));
+		checkSameUser(user1, dao.get(user1.getId()));
+		
+		user1.setLevel(Level.SILVER);
+		user1.setLogin(50);
+		dao.upsert(user1);		// 있으면 수정
+		assertThat(dao.getCount(), is(1));
+		checkSameUser(user1, dao.get(user1.getId()));
+	}
+	
+	@Test
+	public void addIfAbsent() {
+		dao.deleteAll();
+		
+		assertThat(dao.addIfAbsent(user1), is(true));
+		
+		user1.setName("오민규");
+		assertThat(dao.addIfAbsent(user1), is(false));
+		assertThat(dao.getCount(), is(1));
+		assertThat(dao.get(user1.getId()).getName(), is("박성철"));
+	}
+	
+	@Test
+	public void upsertAllAndAddAllIfAbsent() {
+		dao.deleteAll();
+		dao.add(user1);
+		
+		user1.setLevel(Level.GOLD);
+		dao.upsertAll(Arrays.asList(user1, user2));
+		assertThat(dao.getCount(), is(2));
+		checkSameUser(user1, dao.get(user1.getId()));
+		checkSameUser(user2, dao.get(user2.getId()));
+		
+		assertThat(dao.addAllIfAbsent(Arrays.asList(user1, user2, user3)), is(1));
+		assertThat(dao.getCount(), is(3));
+		checkSameUser(user3, dao.get(user3.getId()));
+	}
+	
+	@Test
+	public void getAllByIds() {
+		dao.deleteAll();
+		dao.add(user1);
+		dao.add(user2);
+		dao.add(user3);
+		
+		Map<String, User> users = dao.getAll(Arrays.asList(user1.getId(), "unknown_id", user3.getId()));
+		assertThat(users.size(), is(2));	// 없는 id는 예외 없이 빠진다.
+		checkSameUser(user1, users.get(user1.getId()));
+		checkSameUser(user3, users.get(user3.getId()));
+	}
+	
+	@Test
+	public void deleteAllByIds() {
+		dao.deleteAll();
+		dao.add(user1);
+		dao.add(user2);
+		dao.add(user3);
+		
+		assertThat(dao.deleteAll(Arrays.asList(user1.getId(), "unknown_id", user3.getId())), is(2));
+		assertThat(dao.getCount(), is(1));
+		checkSameUser(user2, dao.get(user2.getId()));
+	}
+	
+	@Test
+	public void updateOnlyChangedColumns() {
+		dao.deleteAll();
+		dao.add(user1);
+		
+		User loaded = dao.get(user1.getId());
+		User other = dao.get(user1.getId());
+		
+		loaded.upgradeLevel();
+		other.setEmail("gyumee@ksug.org");
+		dao.update(other);
+		dao.update(loaded);		// level만 바꾸므로 other가 바꾼 email을 덮어쓰지 않는다.
+		
+		User updated = dao.get(user1.getId());
+		assertThat(updated.getLevel(), is(Level.SILVER));
+		assertThat(updated.getEmail(), is("gyumee@ksug.org"));
+		assertThat(loaded.isChanged(), is(false));
+		
+		dao.update(loaded);		// 바뀐 것이 없으면 아무 일도 하지 않는다.
+	}
+	
+	@Test
+	public void updateAllGroupsByChangedColumns() {
+		dao.deleteAll();
+		dao.addAll(Arrays.asList(user1, user2, user3));
+		
+		Map<String, User> users = dao.getAll(Arrays.asList(user1.getId(), user2.getId(), user3.getId()));
+		users.get(user1.getId()).upgradeLevel();
+		users.get(user2.getId()).setRecommend(99);
+		dao.updateAll(Arrays.asList(users.get(user1.getId()), users.get(user2.getId()), users.get(user3.getId())));
+		
+		assertThat(dao.get(user1.getId()).getLevel(), is(user1.getLevel().nextLevel()));
+		assertThat(dao.get(user2.getId()).getRecommend(), is(99));
+		checkSameUser(user3, dao.get(user3.getId()));
+	}
+	
+	@Test
+	public void getUpgradeCandidates() {
+		dao.deleteAll();
+		dao.addAll(Arrays.asList(
+				new User("bumjin", "박범진", "p1", "user1@ksug.org", Level.BASIC, 49, 0),
+				new User("joytouch", "강명성", "p2", "user2@ksug.org", Level.BASIC, 50, 0),
+				new User("erwins", "신승한", "p3", "user3@ksug.org", Level.SILVER, 60, 29),
+				new User("madnite1", "이상호", "p4", "user4@ksug.org", Level.SILVER, 60, 30),
+				new User("green", "오민규", "p5", "user5@ksug.org", Level.GOLD, 100, Integer.MAX_VALUE)));
+		
+		List<User> candidates = dao.getUpgradeCandidates(50, 30);
+		assertThat(candidates.size(), is(2));
+		Set<String> ids = new HashSet<String>();
+		for (User user : candidates) ids.add(user.getId());
+		assertThat(ids.contains("joytouch"), is(true));
+		assertThat(ids.contains("madnite1"), is(true));
+	}
+	
+	@Test
+	public void upgradeLevelsInDatabase() {
+		dao.deleteAll();
+		dao.addAll(Arrays.asList(
+				new User("bumjin", "박범진", "p1", "user1@ksug.org", Level.BASIC, 49, 0),
+				new User("joytouch", "강명성", "p2", "user2@ksug.org", Level.BASIC, 50, 30),
+				new User("erwins", "신승한", "p3", "user3@ksug.org", Level.SILVER, 60, 29),
+				new User("madnite1", "이상호", "p4", "user4@ksug.org", Level.SILVER, 60, 30),
+				new User("green", "오민규", "p5", "user5@ksug.org", Level.GOLD, 100, Integer.MAX_VALUE)));
+		
+		List<User> upgraded = dao.upgradeLevels("run1", 50, 30);
+		assertThat(upgraded.size(), is(2));
+		assertThat(upgraded.get(0).getId(), is("joytouch"));
+		assertThat(upgraded.get(0).getLevel(), is(Level.SILVER));	// 한 번에 한 단계만 올라간다.
+		assertThat(upgraded.get(1).getId(), is("madnite1"));
+		assertThat(upgraded.get(1).getLevel(), is(Level.GOLD));
+		
+		assertThat(dao.get("bumjin").getLevel(), is(Level.BASIC));
+		assertThat(dao.get("erwins").getLevel(), is(Level.SILVER));
+		assertThat(dao.upgradeLevels("run2", 50, 30).size(), is(1));	// 이번에는 joytouch가 GOLD로
+	}
+	
+	@Test
+	public void getChangedSince() throws InterruptedException {
+		dao.deleteAll();
+		dao.addAll(Arrays.asList(user1, user2, user3));
+		
+		// 아직 커밋되지 않았을 수 있는 최근 변경은 나오지 않는다.
+		UserDaoJdbc userDaoJdbc = (UserDaoJdbc) dao;
+		userDaoJdbc.setChangeFeedLagMillis(60 * 1000);
+		assertThat(dao.getChangedSince(0, 10).size(), is(0));
+		userDaoJdbc.setChangeFeedLagMillis(0);
+		
+		List<User> all = dao.getChangedSince(0, 10);
+		assertThat(all.size(), is(3));
+		assertThat(all.get(0).getVersion(), is(1L));
+		
+		// 같은 updatedAt의 사용자는 limit을 넘어도 한 페이지에 모두 들어간다.
+		List<User> first = dao.getChangedSince(0, 1);
+		int sameTime = 0;
+		for (User user : all) {
+			if (user.getUpdatedAt() == first.get(0).getUpdatedAt()) sameTime++;
+		}
+		assertThat(first.size(), is(sameTime));
+		
+		long watermark = all.get(2).getUpdatedAt();
+		Thread.sleep(5);
+		User changed = dao.get(user2.getId());
+		changed.setLogin(changed.getLogin() + 1);
+		dao.update(changed);
+		dao.upsert(user1);	// 값이 같으면 바뀐 것으로 보지 않는다.
+		
+		List<User> since = dao.getChangedSince(watermark, 10);
+		assertThat(since.size(), is(1));
+		assertThat(since.get(0).getId(), is(user2.getId()));
+		assertThat(since.get(0).getVersion(), is(2L));
+		assertThat(dao.get(user1.getId()).getVersion(), is(1L));
+	}
+	
+	@Test
+	public void parallelScan() {
+		dao.deleteAll();
+		dao.addAll(Arrays.asList(user1, user2, user3));
+		// id 순서로 bumjin, gyumee, leegw700이므로 한 명씩 세 범위로 나뉜다.
+		assertThat(((UserDaoJdbc) dao).partitionBounds(3), is(Arrays.asList(user1.getId(), user2.getId())));
+		
+		final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		dao.parallelScan(3, new UserCallback() {
+			public void doWithUser(User user) {
+				ids.add(user.getId());
+			}
+		});
+		
+		Collections.sort(ids);
+		assertThat(ids, is(Arrays.asList(user3.getId(), user1.getId(), user2.getId())));
+	}
+	
+	@Test
+	public void copyAllKeepsVersion() {
+		dao.deleteAll();
+		dao.add(user1);
+		
+		User moved = dao.get(user1.getId());
+		moved.setVersion(7);
+		moved.setUpdatedAt(1000);
+		User other = dao.get(user1.getId());
+		other.setId(user2.getId());
+		other.setVersion(3);
+		other.setUpdatedAt(2000);
+		dao.copyAll(Arrays.asList(moved, other));
+		
+		assertThat(dao.getCount(), is(2));
+		assertThat(dao.get(user1.getId()).getVersion(), is(7L));
+		assertThat(dao.get(user1.getId()).getUpdatedAt(), is(1000L));
+		assertThat(dao.get(user2.getId()).getVersion(), is(3L));
+		assertThat(dao.getChangedSince(2000, 10).size(), is(0));
+	}
+	
+	@Test
+	public void parallelScanWithSampledBounds() {
+		dao.deleteAll();
+		List<User> users = new ArrayList<User>();
+		for (int i = 0; i < 500; i++) {
+			users.add(new User(String.format("user%04d", i), "사용자" + i, "p" + i, null, Level.BASIC, i, 0));
+		}
+		dao.addAll(users);
+		
+		// 표본을 뽑으므로 경계의 위치는 매번 다르지만, 정렬되어 있고 겹치지 않는다.
+		List<String> bounds = ((UserDaoJdbc) dao).partitionBounds(4);
+		assertThat(bounds.size() <= 3, is(true));
+		for (int i = 1; i < bounds.size(); i++) {
+			assertThat(bounds.get(i - 1).compareTo(bounds.get(i)) < 0, is(true));
+		}
+		
+		final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+		final int[] duplicates = new int[1];
+		dao.parallelScan(4, new UserCallback() {
+			public void doWithUser(User user) {
+				if (!ids.add(user.getId())) {
+					synchronized (duplicates) { duplicates[0]++; }
+				}
+			}
+		});
+		assertThat(ids.size(), is(500));
+		assertThat(duplicates[0], is(0));
+	}
+	
+	@Test
+	public void countNewUsersFromBatchResults() {
+		dao.deleteAll();
+		dao.add(user1);
+		
+		// 같은 id가 한 배치에 두 번 있어도 한 명으로 센다.
+		assertThat(dao.addAllIfAbsent(Arrays.asList(user1, user2, user2)), is(1));
+		assertThat(dao.getCount(), is(2));
+		
+		User changed = dao.get(user1.getId());
+		changed.setLogin(changed.getLogin() + 1);
+		dao.upsertAll(Arrays.asList(changed, user2, user3));
+		assertThat(dao.getCount(), is(3));
+	}
+	
+	@Test
+	public void countNewUsersWithoutPrecountWhenDriverReportsRows() {
+		final int[] precounts = { 0 };
+		UserDaoJdbc userDao = new UserDaoJdbc() {
+			protected int existingUserCount(Collection<String> ids) {
+				precounts[0]++;
+				return super.existingUserCount(ids);
+			}
+		};
+		userDao.setDataSource(dataSource);
+		userDao.setBatchSize(1);
+		userDao.deleteAll();
+		
+		// row별 결과를 주는 드라이버이므로 첫 배치에서만 미리 센다.
+		assertThat(userDao.addAllIfAbsent(Arrays.asList(user1, user2, user3)), is(3));
+		assertThat(userDao.addAllIfAbsent(Arrays.asList(user1, user2)), is(0));
+		assertThat(precounts[0], is(1));
+		assertThat(userDao.getCount(), is(3));
+	}
+	
+	@Test
+	public void loadCsvReadsSameAsLineImport() throws Exception {
+		// LOAD DATA LOCAL INFILE은 MySQL에서만 실행할 수 있다.
+		String product = new JdbcTemplate(dataSource).execute(new ConnectionCallback<String>() {
+			public String doInConnection(Connection c) throws SQLException {
+				return c.getMetaData().getDatabaseProductName();
+			}
+		});
+		assumeThat(product, is("MySQL"));
+		
+		File file = File.createTempFile("users", ".csv");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				writer.write("id,name,password,email,level,login,recommend\r\n");
+				writer.write(" gyumee , 박성철 ,springno1,user1@ksug.org, 1 ,1,0\r\n");
+				writer.write("leegw700,\"이길원, \"\"길\"\"\",spring\\no2,,silver,55,10\r\n");
+				writer.write("bumjin,박범진,springno3,user3@ksug.org,,,\r\n");
+			} finally {
+				writer.close();
+			}
+			UserCsvImporter importer = new UserCsvImporter();
+			importer.setUserDao(dao);
+			
+			dao.deleteAll();
+			importer.importFile(file.getPath());
+			List<User> byLine = dao.getAll();
+			
+			dao.deleteAll();
+			importer.setUseLoadData(true);
+			importer.importFile(file.getPath());
+			List<User> byLoadData = dao.getAll();
+			
+			assertThat(byLoadData.size(), is(3));
+			assertThat(byLoadData.size(), is(byLine.size()));
+			for (int i = 0; i < byLine.size(); i++) {
+				checkSameUser(byLoadData.get(i), byLine.get(i));
+			}
+			assertThat(dao.get("leegw700").getName(), is("이길원, \"길\""));
+			assertThat(dao.get("leegw700").getPassword(), is("spring\\no2"));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void countTableFollowsEveryChange() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		dao.deleteAll();
+		checkCountTable(jdbcTemplate, 0);
+		
+		dao.add(user1);
+		checkCountTable(jdbcTemplate, 1);
+		
+		dao.addAll(Arrays.asList(user2, user3));
+		checkCountTable(jdbcTemplate, 3);
+		
+		assertThat(dao.deleteAll(Arrays.asList(user1.getId(), "nobody")), is(1));
+		checkCountTable(jdbcTemplate, 2);
+		
+		dao.deleteAll();
+		checkCountTable(jdbcTemplate, 0);
+	}
+	
+	private void checkCountTable(JdbcTemplate jdbcTemplate, int expected) {
+		assertThat(jdbcTemplate.queryForObject("select count(*) from users", Integer.class), is(expected));
+		assertThat(dao.getCount(CountMode.EXACT), is(expected));
+	}
+	
+	@Test
+	public void countModes() {
+		// EXACT는 users를 세지 않고 카운터 테이블을 읽는다.
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		dao.deleteAll();
+		jdbcTemplate.update("update users_count set cnt = 42 where id = 1");
+		try {
+			assertThat(dao.getCount(), is(42));
+			assertThat(dao.getCount(CountMode.EXACT), is(42));
+		} finally {
+			jdbcTemplate.update("update users_count set cnt = 0 where id = 1");
+		}
+		
+		// APPROXIMATE는 테이블 통계 값을 approximateCountStaleness 동안 캐시해서 쓴다.
+		final int[] statistics = { 100 };
+		UserDaoJdbc userDao = new UserDaoJdbc() {
+			protected int statisticsRowCount() {
+				return statistics[0];
+			}
+		};
+		userDao.setDataSource(dataSource);
+		assertThat(userDao.getCount(CountMode.APPROXIMATE), is(100));
+		statistics[0] = 200;
+		assertThat(userDao.getCount(CountMode.APPROXIMATE), is(100));
+		assertThat(userDao.getCount(CountMode.EXACT), is(0));
+		
+		userDao = new UserDaoJdbc() {
+			protected int statisticsRowCount() {
+				return statistics[0]++;
+			}
+		};
+		userDao.setDataSource(dataSource);
+		userDao.setApproximateCountStaleness(0);
+		assertThat(userDao.getCount(CountMode.APPROXIMATE), is(200));
+		assertThat(userDao.getCount(CountMode.APPROXIMATE), is(201));
+	}
+	
+	@Test
+	public void changesRemainAfterRollback() {
+		dao.deleteAll();
+		dao.add(user1);
+		final User user = dao.get(user1.getId());
+		user.setLogin(user.getLogin() + 10);
+		
+		new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				dao.updateAll(Arrays.asList(user));
+				status.setRollbackOnly();
+			}
+		});
+		assertThat(user.isChanged(), is(true));
+		assertThat(dao.get(user1.getId()).getLogin(), is(user1.getLogin()));
+		
+		dao.update(user);	// 롤백된 오브젝트로 다시 저장할 수 있다.
+		assertThat(user.isChanged(), is(false));
+		assertThat(dao.get(user1.getId()).getLogin(), is(user1.getLogin() + 10));
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+package springbook.user.dao;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+/**
+ * users 테이블 전체를 파일로 내보낸다.
+ *  - UserDao.forEachUser()의 forward-only 커서로 한 row씩 받아 bufferSize 크기의 버퍼에 인코딩하고,
+ *    버퍼가 차면 FileChannel에 쓴다. getAll()처럼 List<User>를 만들지 않으므로 힙 사용량이 테이블 크기와 관계없다.
+ *  - CSV는 UserCsvImporter가 읽는 형식(헤더 + id,name,password,email,level,login,recommend)이다.
+ *    쉼표, 큰따옴표, 줄바꿈이 있는 값은 큰따옴표로 감싸므로 여러 줄에 걸친 레코드도 다시 읽을 수 있다.
+ *  - BINARY는 "USR1" 다음에 row마다 [row 길이 int][문자열 필드: 길이 short + UTF-8][level byte][login int][recommend int].
+ *    email이 null이면 길이를 -1로 쓴다. readBinary()로 다시 읽을 수 있다.
+ *  - gzip을 켜면 버퍼를 GZIPOutputStream을 거쳐 채널에 쓴다.
+ *
+ */
+public class UserExporter {
+
+	public enum Format { CSV, BINARY }
+
+	static final byte[] BINARY_MAGIC = { 'U', 'S', 'R', '1' };
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte[] CSV_HEADER = "id,name,password,email,level,login,recommend\n".getBytes(UTF_8);
+
+	private static final Log log = LogFactory.getLog(UserExporter.class);
+
+	private UserDao userDao;
+	private Format format = Format.CSV;
+	private boolean gzip = false;
+	private int bufferSize = 256 * 1024;
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * 내보낸 사용자 수를 돌려준다.
+	 */
+	public long export(File file) throws IOException {
+		long start = System.nanoTime();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		ReleasableGZIPOutputStream gzipOut = null;
+		try {
+			if (gzip) gzipOut = new ReleasableGZIPOutputStream(Channels.newOutputStream(channel));
+			final Sink sink = new Sink(channel, gzipOut);
+			sink.put(format == Format.CSV ? CSV_HEADER : BINARY_MAGIC);
+			final long[] count = new long[1];
+			try {
+				userDao.forEachUser(new UserCallback() {
+					public void doWithUser(User user) {
+						try {
+							if (format == Format.CSV) sink.writeCsv(user);
+							else sink.writeBinary(user);
+						} catch (IOException e) {
+							throw new ExportIOException(e);
+						}
+						count[0]++;
+					}
+				});
+			} catch (ExportIOException e) {
+				throw e.getCause();
+			}
+			sink.finish();
+
+			long elapsed = System.nanoTime() - start;
+			log.info(file + " " + count[0] + " users, " + channel.size() + " bytes, " + elapsed / 1000000 + "ms" +
+					(elapsed > 0 ? ", " + count[0] * 1000000000L / elapsed + " rows/s" : ""));
+			return count[0];
+		} finally {
+			// 중간에 실패해서 finish()까지 가지 못해도 Deflater의 네이티브 메모리를 돌려준다.
+			if (gzipOut != null) gzipOut.release();
+			channel.close();
+		}
+	}
+
+	/**
+	 * BINARY 형식으로 내보낸 파일을 읽어서 한 명씩 콜백에 넘긴다.
+	 */
+	public static void readBinary(File file, boolean gzip, UserCallback callback) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		if (gzip) in = new GZIPInputStream(in, 64 * 1024);
+		DataInputStream data = new DataInputStream(in);
+		try {
+			byte[] magic = new byte[BINARY_MAGIC.length];
+			data.readFully(magic);
+			if (!Arrays.equals(magic, BINARY_MAGIC)) throw new IOException("사용자 바이너리 파일이 아닙니다: " + file);
+			while (true) {
+				try {
+					data.readInt();	// row 길이. 순서대로 읽을 때는 필요 없고 건너뛸 때 쓴다.
+				} catch (EOFException e) {
+					return;
+				}
+				String id = readString(data);
+				String name = readString(data);
+				String password = readString(data);
+				String email = readString(data);
+				Level level = Level.valueOf(data.readByte());
+				callback.doWithUser(new User(id, name, password, email, level, data.readInt(), data.readInt()));
+			}
+		} finally {
+			data.close();
+		}
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readShort();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	// UserCallback은 checked 예외를 던질 수 없으므로 잠시 감싸서 export()에서 다시 꺼낸다.
+	private static class ExportIOException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExportIOException(IOException cause) {
+			super(cause);
+		}
+
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	// GZIPOutputStream은 close()해야 Deflater를 정리하는데, close()는 채널까지 닫고 실패한 뒤에는 trailer를 쓰려고 한다.
+	// 채널은 export()가 닫으므로 Deflater만 따로 정리할 수 있게 한다.
+	private static class ReleasableGZIPOutputStream extends GZIPOutputStream {
+		ReleasableGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, 64 * 1024);
+		}
+
+		void release() {
+			def.end();
+		}
+	}
+
+	// 한 번 할당한 버퍼에 row를 인코딩하고, 가득 차면 채널(또는 gzip 스트림)로 비운다.
+	private class Sink {
+		final FileChannel channel;
+		final GZIPOutputStream gzipOut;
+		// 바이너리 row 하나(스키마의 컬럼 길이로 300바이트 이내)가 항상 들어가도록 최소 크기를 둔다.
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+
+		Sink(FileChannel channel, GZIPOutputStream gzipOut) {
+			this.channel = channel;
+			this.gzipOut = gzipOut;
+		}
+
+		void writeCsv(User user) throws IOException {
+			putCsvField(user.getId());
+			putByte((byte) ',');
+			putCsvField(user.getName());
+			putByte((byte) ',');
+			putCsvField(user.getPassword());
+			putByte((byte) ',');
+			if (user.getEmail() != null) putCsvField(user.getEmail());
+			putByte((byte) ',');
+			put(Integer.toString(user.getLevel().intValue()).getBytes(UTF_8));
+			putByte((byte) ',');
+			put(Integer.toString(user.getLogin()).getBytes(UTF_8));
+			putByte((byte) ',');
+			put(Integer.toString(user.getRecommend()).getBytes(UTF_8));
+			putByte((byte) '\n');
+		}
+
+		private void putCsvField(String value) throws IOException {
+			boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+					|| value.indexOf('\r') >= 0;
+			if (!quote) {
+				put(value.getBytes(UTF_8));
+				return;
+			}
+			put(("\"" + value.replace("\"", "\"\"") + "\"").getBytes(UTF_8));
+		}
+
+		void writeBinary(User user) throws IOException {
+			byte[] id = user.getId().getBytes(UTF_8);
+			byte[] name = user.getName().getBytes(UTF_8);
+			byte[] password = user.getPassword().getBytes(UTF_8);
+			byte[] email = user.getEmail() == null ? null : user.getEmail().getBytes(UTF_8);
+			int length = 2 + id.length + 2 + name.length + 2 + password.length + 2 + (email == null ? 0 : email.length) + 1 + 4 + 4;
+			ensure(4 + length);
+			buffer.putInt(length);
+			putBinaryString(id);
+			putBinaryString(name);
+			putBinaryString(password);
+			putBinaryString(email);
+			buffer.put((byte) user.getLevel().intValue());
+			buffer.putInt(user.getLogin());
+			buffer.putInt(user.getRecommend());
+		}
+
+		private void putBinaryString(byte[] bytes) {
+			if (bytes == null) {
+				buffer.putShort((short) -1);
+				return;
+			}
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		}
+
+		private void putByte(byte b) throws IOException {
+			ensure(1);
+			buffer.put(b);
+		}
+
+		void put(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (!buffer.hasRemaining()) drain();
+				int length = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		// 바이너리 row는 버퍼 안에 통째로 넣는다.
+		private void ensure(int length) throws IOException {
+			if (buffer.remaining() < length) drain();
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			if (gzipOut != null) {
+				gzipOut.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+			} else {
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		void finish() throws IOException {
+			drain();
+			if (gzipOut != null) gzipOut.finish();
+			channel.force(false);
+		}
+	}
+}
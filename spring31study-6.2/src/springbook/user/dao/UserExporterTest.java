@@ -0,0 +1,107 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+public class UserExporterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	UserDao userDao;
+	UserExporter exporter;
+
+	@Before
+	public void setUp() {
+		userDao = new InMemoryUserDao();
+		for (int i = 0; i < 100; i++) {
+			String id = String.format("user%03d", i);
+			userDao.add(new User(id, "사용자, " + i, "pw" + i, i % 10 == 0 ? null : id + "@ksug.org",
+					Level.valueOf(i % 3 + 1), i, i * 2));
+		}
+		exporter = new UserExporter();
+		exporter.setUserDao(userDao);
+		exporter.setBufferSize(1024);	// 버퍼를 여러 번 비우도록 작게 잡는다.
+	}
+
+	@Test
+	public void csvCanBeImportedAgain() throws IOException {
+		File file = folder.newFile("users.csv");
+
+		assertThat(exporter.export(file), is(100L));
+
+		UserDao target = new InMemoryUserDao();
+		UserCsvImporter importer = new UserCsvImporter();
+		importer.setUserDao(target);
+		importer.importFile(file.getPath());
+
+		assertThat(target.getCount(), is(100));
+		checkSameUser(target.get("user010"), userDao.get("user010"));
+		checkSameUser(target.get("user057"), userDao.get("user057"));
+	}
+
+	@Test
+	public void csvWithLineBreaksCanBeImportedAgain() throws IOException {
+		userDao.deleteAll();
+		userDao.add(new User("gyumee", "박\n성철", "sp\r\nno1", "user1@ksug.org", Level.BASIC, 1, 0));
+		userDao.add(new User("leegw700", "이\"길\"\r원,", "springno2", null, Level.SILVER, 55, 10));
+		File file = folder.newFile("users.csv");
+
+		assertThat(exporter.export(file), is(2L));
+
+		UserDao target = new InMemoryUserDao();
+		UserCsvImporter importer = new UserCsvImporter();
+		importer.setUserDao(target);
+		UserCsvImporter.Result result = importer.importFile(file.getPath());
+
+		assertThat(result.getRejected(), is(0L));
+		assertThat(target.getCount(), is(2));
+		checkSameUser(target.get("gyumee"), userDao.get("gyumee"));
+		checkSameUser(target.get("leegw700"), userDao.get("leegw700"));
+	}
+
+	@Test
+	public void binaryWithGzip() throws IOException {
+		File file = folder.newFile("users.bin.gz");
+		exporter.setFormat(UserExporter.Format.BINARY);
+		exporter.setGzip(true);
+
+		assertThat(exporter.export(file), is(100L));
+
+		final List<User> users = new ArrayList<User>();
+		UserExporter.readBinary(file, true, new UserCallback() {
+			public void doWithUser(User user) {
+				users.add(user);
+			}
+		});
+		assertThat(users.size(), is(100));
+		checkSameUser(users.get(0), userDao.get("user000"));
+		assertThat(users.get(0).getEmail(), is(nullValue()));
+		checkSameUser(users.get(99), userDao.get("user099"));
+	}
+
+	private void checkSameUser(User user1, User user2) {
+		assertThat(user1.getId(), is(user2.getId()));
+		assertThat(user1.getName(), is(user2.getName()));
+		assertThat(user1.getPassword(), is(user2.getPassword()));
+		assertThat(user1.getEmail(), is(user2.getEmail()));
+		assertThat(user1.getLevel(), is(user2.getLevel()));
+		assertThat(user1.getLogin(), is(user2.getLogin()));
+		assertThat(user1.getRecommend(), is(user2.getRecommend()));
+	}
+
+}
@@ -0,0 +1,62 @@
+package springbook.user.dao;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import org.springframework.jdbc.core.RowMapper;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+
+/**
+ * User 매핑용 RowMapper.
+ * 첫 row를 매핑할 때 ResultSetMetaData에서 컬럼 인덱스를 한 번만 찾아두고,
+ * 나머지 row는 컬럼 이름 대신 인덱스로 바로 읽는다.
+ * 찾아둔 인덱스는 쿼리마다 다를 수 있으므로 쿼리를 실행할 때마다 새로 만들어서 사용한다.
+ *
+ */
+public class UserRowMapper implements RowMapper<User> {
+	
+	private boolean resolved = false;
+	private int id;
+	private int name;
+	private int password;
+	private int email;
+	private int level;
+	private int login;
+	private int recommend;
+	private int version;
+	private int updatedAt;
+
+	public User mapRow(ResultSet rs, int rowNum) throws SQLException {
+		if (!resolved) resolveIndexes(rs.getMetaData());
+		
+		User user = new User(rs.getString(id), rs.getString(name), rs.getString(password),
+				rs.getString(email), Level.valueOf(rs.getInt(level)), rs.getInt(login), rs.getInt(recommend));
+		user.setVersion(rs.getLong(version));
+		user.setUpdatedAt(rs.getLong(updatedAt));
+		user.clearChanges();	// DB에서 읽은 상태부터 변경을 추적한다.
+		return user;
+	}
+
+	private void resolveIndexes(ResultSetMetaData md) throws SQLException {
+		this.id = indexOf(md, "id");
+		this.name = indexOf(md, "name");
+		this.password = indexOf(md, "password");
+		this.email = indexOf(md, "email");
+		this.level = indexOf(md, "level");
+		this.login = indexOf(md, "login");
+		this.recommend = indexOf(md, "recommend");
+		this.version = indexOf(md, "version");
+		this.updatedAt = indexOf(md, "updated_at");
+		this.resolved = true;
+	}
+
+	private int indexOf(ResultSetMetaData md, String column) throws SQLException {
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			if (column.equalsIgnoreCase(md.getColumnLabel(i))) return i;
+		}
+		throw new SQLException("Column not found: " + column);
+	}
+}
@@ -0,0 +1,471 @@
+package springbook.user.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+
+import springbook.user.domain.User;
+import springbook.user.domain.UserField;
+
+/**
+ * update()를 바로 DB에 보내지 않고 버퍼에 모았다가 한꺼번에 쓰는 UserDao 데코레이터.
+ * 프로필이나 카운터처럼 자주 바뀌고 금방 다시 덮어쓰이는 수정을 호출마다 DB에 왕복하지 않게 한다.
+ *  - 같은 id의 수정은 버퍼에서 합쳐진다. 바뀐 필드도 합쳐서, 각 수정이 바꾼 컬럼만 그 수정의 값으로 쓴다.
+ *  - 버퍼에 flushSize개가 모이거나 flushIntervalMillis가 지나면 백그라운드 스레드가
+ *    위임 DAO의 updateAll()로 한 번의 JDBC 배치로 쓴다.
+ *  - 버퍼는 maxBufferSize개까지다. 가득 차면 update()는 자리가 날 때까지 bufferWaitMillis만큼 기다리고,
+ *    그래도 자리가 나지 않으면 IllegalStateException을 던진다.
+ *  - flush()를 호출하면 그때까지 받은 수정을 호출한 스레드에서 바로 쓴다.
+ *  - 애플리케이션 종료 시 shutdown()을 호출해야 남은 수정이 쓰인다. (빈 설정의 destroy-method)
+ *  - get()과 getAll(ids)는 아직 쓰이지 않은 수정을 반영해서 돌려준다. 목록 조회와 다른 쓰기 작업은
+ *    순서가 뒤바뀌지 않도록 먼저 flush()한다.
+ *  - 쓰기에 실패한 배치는 반으로 나눠 다시 써서 쓸 수 있는 수정은 먼저 쓰고, 실패한 수정만 버퍼로 돌려놓는다.
+ *    (그사이 들어온 수정이 우선한다) 연결 장애처럼 배치 전체가 실패하는 예외는 나누지 않고 다음 주기에 다시 쓴다.
+ *  - 한 수정이 maxAttempts번 실패하면 로그를 남기고 버린다. 잘못된 한 줄 때문에 뒤의 수정이 모두 막히지 않게 한다.
+ *
+ */
+public class WriteBehindUserDao implements UserDao {
+
+	private static final Log log = LogFactory.getLog(WriteBehindUserDao.class);
+
+	private UserDao userDao;
+	private int flushSize = 1000;
+	private long flushIntervalMillis = 1000;
+	private int maxBufferSize = 10000;
+	private long bufferWaitMillis = 10000;
+	private int maxAttempts = 3;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushNeeded = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private Map<String, User> pending = new LinkedHashMap<String, User>();
+	private Map<String, User> inFlight = Collections.emptyMap();	// 쓰는 중인 배치. get()에서 참고한다.
+	private final Map<String, Integer> attempts = new HashMap<String, Integer>();	// id별로 연달아 실패한 횟수
+	private Thread flusher;
+	private boolean running = true;
+
+	// 배치가 버퍼에서 꺼낸 순서대로 쓰이도록 한 번에 하나의 flush만 실행한다.
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final AtomicLong mergedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failedFlushCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	public void setUserDao(UserDao userDao) {
+		this.userDao = userDao;
+	}
+
+	public void setFlushSize(int flushSize) {
+		this.flushSize = flushSize;
+	}
+
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	public void setMaxBufferSize(int maxBufferSize) {
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	public void setBufferWaitMillis(long bufferWaitMillis) {
+		this.bufferWaitMillis = bufferWaitMillis;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	// 버퍼에서 합쳐져 DB에 보내지 않아도 된 수정 수
+	public long getMergedCount() {
+		return mergedCount.get();
+	}
+
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushCount.get();
+	}
+
+	// maxAttempts번 실패해서 버린 수정 수
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void update(User user) {
+		lock.lock();
+		try {
+			if (!running) throw new IllegalStateException("이미 종료되었습니다.");
+			startFlusher();
+			long nanos = TimeUnit.MILLISECONDS.toNanos(bufferWaitMillis);
+			while (running && pending.size() >= maxBufferSize && !pending.containsKey(user.getId())) {
+				if (nanos <= 0) throw new IllegalStateException("쓰기 버퍼가 " + bufferWaitMillis + "ms 동안 가득 차 있습니다.");
+				flushNeeded.signal();
+				try {
+					nanos = notFull.awaitNanos(nanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("쓰기 버퍼에 자리가 나기를 기다리다 중단되었습니다.", e);
+				}
+			}
+			if (!running) throw new IllegalStateException("이미 종료되었습니다.");
+			User previous = pending.get(user.getId());
+			if (previous != null) {
+				pending.put(user.getId(), merge(previous, user));
+				mergedCount.incrementAndGet();
+			} else {
+				pending.put(user.getId(), copyOf(user));
+			}
+			if (pending.size() >= flushSize) flushNeeded.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void updateAll(List<User> users) {
+		for (User user : users) {
+			update(user);
+		}
+	}
+
+	/**
+	 * 버퍼에 있는 수정을 지금 바로 위임 DAO에 쓴다. 쓰지 못한 수정이 버퍼로 돌아가면 처음 난 예외를 던진다.
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			Map<String, User> batch;
+			lock.lock();
+			try {
+				if (pending.isEmpty()) return;
+				batch = pending;
+				inFlight = batch;
+				pending = new LinkedHashMap<String, User>();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			Map<User, RuntimeException> failed = new LinkedHashMap<User, RuntimeException>();
+			RuntimeException failure = null;
+			try {
+				write(new ArrayList<User>(batch.values()), failed);
+			} finally {
+				lock.lock();
+				try {
+					if (!failed.isEmpty()) failedFlushCount.incrementAndGet();
+					failure = requeue(batch, failed);
+					inFlight = Collections.emptyMap();
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (failure != null) throw failure;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	// 배치가 실패하면 반으로 나눠 다시 쓴다. 끝내 쓰지 못한 수정은 예외와 함께 failed에 담는다.
+	private void write(List<User> users, Map<User, RuntimeException> failed) {
+		try {
+			userDao.updateAll(users);
+			writtenCount.addAndGet(users.size());
+		} catch (RuntimeException e) {
+			if (users.size() == 1 || !isRowError(e)) {
+				for (User user : users) failed.put(user, e);
+				return;
+			}
+			int half = users.size() / 2;
+			write(new ArrayList<User>(users.subList(0, half)), failed);
+			write(new ArrayList<User>(users.subList(half, users.size())), failed);
+		}
+	}
+
+	// 연결 장애나 일시적인 오류는 어느 수정의 잘못도 아니므로 배치를 나누지 않고 실패 횟수도 세지 않는다.
+	private boolean isRowError(RuntimeException e) {
+		return !(e instanceof TransientDataAccessException || e instanceof RecoverableDataAccessException
+				|| e instanceof DataAccessResourceFailureException);
+	}
+
+	// lock을 잡은 상태에서 호출한다. 실패한 수정을 버퍼 앞에 돌려놓고, 버퍼로 돌아간 수정이 있으면 그 예외를 돌려준다.
+	private RuntimeException requeue(Map<String, User> batch, Map<User, RuntimeException> failed) {
+		if (failed.isEmpty() && attempts.isEmpty()) return null;
+		Map<String, User> retry = new LinkedHashMap<String, User>();
+		RuntimeException failure = null;
+		for (User user : batch.values()) {
+			RuntimeException e = failed.get(user);
+			if (e == null) {
+				attempts.remove(user.getId());
+				continue;
+			}
+			if (isRowError(e)) {
+				Integer count = attempts.get(user.getId());
+				int attempt = count == null ? 1 : count + 1;
+				if (attempt >= maxAttempts) {
+					attempts.remove(user.getId());
+					droppedCount.incrementAndGet();
+					log.error("사용자 " + user.getId() + "의 수정을 " + attempt + "번 쓰지 못해서 버립니다.", e);
+					continue;
+				}
+				attempts.put(user.getId(), attempt);
+			}
+			retry.put(user.getId(), user);
+			if (failure == null) failure = e;
+		}
+		for (User user : pending.values()) {
+			User previous = retry.get(user.getId());
+			retry.put(user.getId(), previous != null ? merge(previous, user) : user);
+		}
+		pending = retry;
+		return failure;
+	}
+
+	/**
+	 * 백그라운드 스레드를 멈추고 남은 수정을 모두 쓴다.
+	 */
+	public void shutdown() {
+		Thread thread;
+		lock.lock();
+		try {
+			running = false;
+			thread = flusher;
+			flushNeeded.signal();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	// lock을 잡은 상태에서 호출한다.
+	private void startFlusher() {
+		if (flusher != null) return;
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				runFlusher();
+			}
+		}, "write-behind-user-dao");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private void runFlusher() {
+		boolean failed = false;
+		while (true) {
+			lock.lock();
+			try {
+				// 실패한 뒤에는 버퍼가 차 있어도 한 주기를 기다렸다가 다시 쓴다.
+				long deadline = System.currentTimeMillis() + flushIntervalMillis;
+				while (running && (failed || pending.size() < flushSize)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) break;
+					flushNeeded.await(remaining, TimeUnit.MILLISECONDS);
+				}
+				if (!running) return;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				flush();
+				failed = false;
+			} catch (RuntimeException e) {
+				failed = true;
+				log.warn("버퍼의 수정을 쓰지 못했습니다. 실패한 수정은 다음 주기에 다시 씁니다.", e);
+			}
+		}
+	}
+
+	public User get(String id) {
+		User buffered = buffered(id);
+		User user = userDao.get(id);
+		return buffered != null ? copyOf(buffered) : user;
+	}
+
+	// 먼저 버퍼를 보고 나서 DB를 읽어야, 그사이 flush가 끝나도 오래된 값을 돌려주지 않는다.
+	// 없는 id의 수정은 DB에 써도 아무 일이 없으므로, DB에 있는 사용자에만 버퍼의 수정을 덮어쓴다.
+	public Map<String, User> getAll(Collection<String> ids) {
+		Map<String, User> buffered = new LinkedHashMap<String, User>();
+		for (String id : ids) {
+			User user = buffered(id);
+			if (user != null) buffered.put(id, user);
+		}
+		Map<String, User> users = userDao.getAll(ids);
+		for (Map.Entry<String, User> entry : buffered.entrySet()) {
+			if (users.containsKey(entry.getKey())) users.put(entry.getKey(), copyOf(entry.getValue()));
+		}
+		return users;
+	}
+
+	private User buffered(String id) {
+		lock.lock();
+		try {
+			User user = pending.get(id);
+			return user != null ? user : inFlight.get(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void add(User user) {
+		flush();
+		userDao.add(user);
+	}
+
+	public void addAll(Collection<User> users) {
+		flush();
+		userDao.addAll(users);
+	}
+
+	public void upsert(User user) {
+		flush();
+		userDao.upsert(user);
+	}
+
+	public boolean addIfAbsent(User user) {
+		flush();
+		return userDao.addIfAbsent(user);
+	}
+
+	public void upsertAll(Collection<User> users) {
+		flush();
+		userDao.upsertAll(users);
+	}
+
+	public void copyAll(Collection<User> users) {
+		flush();
+		userDao.copyAll(users);
+	}
+
+	public int addAllIfAbsent(Collection<User> users) {
+		flush();
+		return userDao.addAllIfAbsent(users);
+	}
+
+	public void deleteAll() {
+		flush();
+		userDao.deleteAll();
+	}
+
+	public int deleteAll(Collection<String> ids) {
+		flush();
+		return userDao.deleteAll(ids);
+	}
+
+	public List<User> getAll() {
+		flush();
+		return userDao.getAll();
+	}
+
+	public List<User> getPage(String afterId, int limit) {
+		flush();
+		return userDao.getPage(afterId, limit);
+	}
+
+	public void forEachUser(UserCallback callback) {
+		flush();
+		userDao.forEachUser(callback);
+	}
+
+	public void parallelScan(int partitions, UserCallback callback) {
+		flush();
+		userDao.parallelScan(partitions, callback);
+	}
+
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) {
+		flush();
+		return userDao.getUpgradeCandidates(minLoginForSilver, minRecommendForGold);
+	}
+
+	public List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold) {
+		flush();
+		return userDao.upgradeLevels(runId, minLoginForSilver, minRecommendForGold);
+	}
+
+	public List<User> getChangedSince(long watermark, int limit) {
+		flush();
+		return userDao.getChangedSince(watermark, limit);
+	}
+
+	// 수정은 사용자 수를 바꾸지 않으므로 flush하지 않는다.
+	public int getCount() {
+		return userDao.getCount();
+	}
+
+	public int getCount(CountMode mode) {
+		return userDao.getCount(mode);
+	}
+
+	// version과 updatedAt은 update()를 호출할 때 사용자가 가지고 있던 값이다. (DB에 쓰이면서 바뀐다)
+	// 바뀐 필드도 그대로 옮겨야 위임 DAO가 바뀐 컬럼만 쓴다.
+	private User copyOf(User user) {
+		User copy = new User(user.getId(), user.getName(), user.getPassword(), user.getEmail(),
+				user.getLevel(), user.getLogin(), user.getRecommend());
+		copy.setVersion(user.getVersion());
+		copy.setUpdatedAt(user.getUpdatedAt());
+		copy.clearChanges();
+		copy.markChanged(user.getChangedFields());
+		return copy;
+	}
+
+	// 같은 id의 앞선 수정에 다음 수정을 합친다. 다음 수정이 바꾸지 않은 필드는 앞선 수정의 값을 남겨서
+	// 두 수정이 바꾼 컬럼이 모두 각자의 값으로 쓰이게 한다.
+	private User merge(User previous, User user) {
+		User merged = copyOf(user);
+		Set<UserField> previousOnly = previous.getChangedFields();
+		previousOnly.removeAll(user.getChangedFields());
+		for (UserField field : previousOnly) {
+			copyField(previous, merged, field);
+		}
+		merged.markChanged(previous.getChangedFields());
+		return merged;
+	}
+
+	private void copyField(User from, User to, UserField field) {
+		switch (field) {
+		case NAME: to.setName(from.getName()); break;
+		case PASSWORD: to.setPassword(from.getPassword()); break;
+		case EMAIL: to.setEmail(from.getEmail()); break;
+		case LEVEL: to.setLevel(from.getLevel()); break;
+		case LOGIN: to.setLogin(from.getLogin()); break;
+		case RECOMMEND: to.setRecommend(from.getRecommend()); break;
+		default: throw new AssertionError("Unknown field: " + field);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package springbook.user.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.RecoverableDataAccessException;
+
+import springbook.user.domain.Level;
+import springbook.user.domain.User;
+import springbook.user.domain.UserField;
+
+public class WriteBehindUserDaoTest {
+
+	UserDao mockUserDao;
+	WriteBehindUserDao writeBehindUserDao;
+	User user1;
+	User user2;
+
+	@Before
+	public void setUp() {
+		user1 = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 1, 0);
+		user2 = new User("leegw700", "이길원", "springno2", "user2@ksug.org", Level.SILVER, 55, 10);
+
+		mockUserDao = mock(UserDao.class);
+		writeBehindUserDao = new WriteBehindUserDao();
+		writeBehindUserDao.setUserDao(mockUserDao);
+		writeBehindUserDao.setFlushIntervalMillis(60 * 1000);
+	}
+
+	@After
+	public void tearDown() {
+		writeBehindUserDao.shutdown();
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void mergeUpdatesToSameId() {
+		writeBehindUserDao.update(user1);
+		writeBehindUserDao.update(user2);
+		user1.setLogin(2);
+		writeBehindUserDao.update(user1);
+		user1.setLogin(3);
+		writeBehindUserDao.update(user1);
+
+		verify(mockUserDao, never()).update(user1);
+		writeBehindUserDao.flush();
+
+		ArgumentCaptor<List<User>> captor = ArgumentCaptor.forClass((Class) List.class);
+		verify(mockUserDao).updateAll(captor.capture());
+		List<User> written = captor.getValue();
+		assertThat(written.size(), is(2));
+		assertThat(written.get(0).getLogin(), is(3));
+		assertThat(writeBehindUserDao.getMergedCount(), is(2L));
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void mergeChangedFieldsOfUpdatesToSameId() {
+		User loginUpdate = new User(user1.getId(), user1.getName(), user1.getPassword(), user1.getEmail(),
+				user1.getLevel(), user1.getLogin(), user1.getRecommend());
+		loginUpdate.clearChanges();
+		loginUpdate.setLogin(10);
+		User emailUpdate = new User(user1.getId(), user1.getName(), user1.getPassword(), user1.getEmail(),
+				user1.getLevel(), user1.getLogin(), user1.getRecommend());
+		emailUpdate.clearChanges();
+		emailUpdate.setEmail("new@ksug.org");
+
+		writeBehindUserDao.update(loginUpdate);
+		writeBehindUserDao.update(emailUpdate);
+		writeBehindUserDao.flush();
+
+		ArgumentCaptor<List<User>> captor = ArgumentCaptor.forClass((Class) List.class);
+		verify(mockUserDao).updateAll(captor.capture());
+		List<User> written = captor.getValue();
+		assertThat(written.size(), is(1));
+		assertThat(written.get(0).getChangedFields(), is((Set<UserField>) EnumSet.of(UserField.EMAIL, UserField.LOGIN)));
+		// 나중 수정이 바꾸지 않은 login은 앞선 수정의 값이 남는다.
+		assertThat(written.get(0).getLogin(), is(10));
+		assertThat(written.get(0).getEmail(), is("new@ksug.org"));
+	}
+
+	@Test
+	public void getReturnsBufferedUserWithVersion() {
+		user1.setVersion(3);
+		user1.setUpdatedAt(1000);
+		when(mockUserDao.get(user1.getId())).thenReturn(user1);
+		writeBehindUserDao.update(user1);
+
+		User buffered = writeBehindUserDao.get(user1.getId());
+		assertThat(buffered.getVersion(), is(3L));
+		assertThat(buffered.getUpdatedAt(), is(1000L));
+	}
+
+	@Test
+	public void flushOnSize() {
+		writeBehindUserDao.setFlushSize(2);
+
+		writeBehindUserDao.update(user1);
+		writeBehindUserDao.update(user2);
+
+		verify(mockUserDao, timeout(1000)).updateAll(anyListOf(User.class));
+	}
+
+	@Test
+	public void getSeesBufferedUpdate() {
+		when(mockUserDao.get(user1.getId())).thenReturn(user1);
+		User changed = new User(user1.getId(), user1.getName(), user1.getPassword(), user1.getEmail(),
+				Level.GOLD, 100, 40);
+		writeBehindUserDao.update(changed);
+
+		assertThat(writeBehindUserDao.get(user1.getId()).getLevel(), is(Level.GOLD));
+	}
+
+	@Test
+	public void shutdownFlushesBuffer() {
+		writeBehindUserDao.update(user1);
+		writeBehindUserDao.shutdown();
+
+		verify(mockUserDao).updateAll(anyListOf(User.class));
+		assertThat(writeBehindUserDao.getPendingCount(), is(0));
+	}
+
+	@Test
+	public void failedFlushIsRetried() {
+		doThrow(new RecoverableDataAccessException("실패"))
+			.doNothing()
+			.when(mockUserDao).updateAll(anyListOf(User.class));
+
+		writeBehindUserDao.update(user1);
+		try {
+			writeBehindUserDao.flush();
+			fail("RecoverableDataAccessException expected");
+		} catch (RecoverableDataAccessException e) {
+		}
+		assertThat(writeBehindUserDao.getPendingCount(), is(1));
+
+		writeBehindUserDao.flush();
+		verify(mockUserDao, times(2)).updateAll(anyListOf(User.class));
+		assertThat(writeBehindUserDao.getPendingCount(), is(0));
+	}
+
+	@Test
+	public void poisonRowIsSplitOutAndDropped() {
+		final List<String> written = new ArrayList<String>();
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) {
+				List<User> users = (List<User>) invocation.getArguments()[0];
+				for (User user : users) {
+					if (user.getId().equals(user1.getId())) throw new DataIntegrityViolationException("잘못된 줄");
+				}
+				for (User user : users) written.add(user.getId());
+				return null;
+			}
+		}).when(mockUserDao).updateAll(anyListOf(User.class));
+		writeBehindUserDao.setMaxAttempts(2);
+
+		writeBehindUserDao.update(user1);
+		writeBehindUserDao.update(user2);
+		try {
+			writeBehindUserDao.flush();
+			fail("DataIntegrityViolationException expected");
+		} catch (DataIntegrityViolationException e) {
+		}
+		// 배치를 나눠서 user2는 먼저 쓰고 user1만 버퍼에 남는다.
+		assertThat(written, is(Arrays.asList(user2.getId())));
+		assertThat(writeBehindUserDao.getPendingCount(), is(1));
+
+		// 두 번째 실패에서 로그를 남기고 버린다.
+		writeBehindUserDao.flush();
+		assertThat(writeBehindUserDao.getPendingCount(), is(0));
+		assertThat(writeBehindUserDao.getDroppedCount(), is(1L));
+	}
+
+	@Test
+	public void fullBufferFailsInsteadOfBlocking() {
+		doThrow(new RecoverableDataAccessException("연결 끊김"))
+			.when(mockUserDao).updateAll(anyListOf(User.class));
+		writeBehindUserDao.setMaxBufferSize(1);
+		writeBehindUserDao.setBufferWaitMillis(100);
+
+		writeBehindUserDao.update(user1);
+		try {
+			writeBehindUserDao.flush();
+			fail("RecoverableDataAccessException expected");
+		} catch (RecoverableDataAccessException e) {
+		}
+		try {
+			writeBehindUserDao.update(user2);
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+		}
+		// 연결 장애는 실패 횟수를 세지 않으므로 버리지 않는다.
+		assertThat(writeBehindUserDao.getPendingCount(), is(1));
+		assertThat(writeBehindUserDao.getDroppedCount(), is(0L));
+
+		doNothing().when(mockUserDao).updateAll(anyListOf(User.class));
+	}
+
+	@Test
+	public void otherWritesFlushFirst() {
+		doNothing().when(mockUserDao).updateAll(anyListOf(User.class));
+		writeBehindUserDao.update(user1);
+		writeBehindUserDao.deleteAll();
+
+		verify(mockUserDao).updateAll(anyListOf(User.class));
+		verify(mockUserDao).deleteAll();
+	}
+
+}
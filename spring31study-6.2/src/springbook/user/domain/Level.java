@@ -19,12 +19,13 @@ public enum Level {
 		return this.next;
 	}
 	
+	// DB 값을 인덱스로 바로 찾을 수 있도록 만들어둔 테이블. (0은 사용하지 않음)
+	private static final Level[] BY_VALUE = { null, BASIC, SILVER, GOLD };
+	
 	public static Level valueOf(int value) {
-		switch(value) {
-			case 1: return BASIC;
-			case 2: return SILVER;
-			case 3: return GOLD;
-			default: throw new AssertionError("Unknown value: " + value);
+		if (value <= 0 || value >= BY_VALUE.length) {
+			throw new AssertionError("Unknown value: " + value);
 		}
+		return BY_VALUE[value];
 	}
 }
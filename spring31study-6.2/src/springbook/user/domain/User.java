@@ -1,5 +1,9 @@
 package springbook.user.domain;
 
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
 /**
  * 사용자 정보 저장용 자바빈 User 클래스.
  * @author kjlee
@@ -15,6 +19,14 @@ public class User {
 	int login;
 	int recommend;
 	
+	// DAO가 저장할 때마다 관리하는 값. 바꿔도 변경으로 추적하지 않고 update()에 반영되지 않는다.
+	long version;		// 등록하면 1, 내용이 바뀔 때마다 1씩 늘어난다.
+	long updatedAt;		// 마지막으로 등록되거나 바뀐 시각(ms). getChangedSince()의 워터마크로 쓴다.
+	
+	// DB에 저장된 상태와 비교해서 바뀐 필드. 새로 만든 User는 DB 상태를 모르므로 모든 필드가 바뀐 것으로 보고,
+	// DB에서 읽어온 User는 clearChanges()로 추적을 시작한다.
+	final EnumSet<UserField> changedFields = EnumSet.allOf(UserField.class);
+	
 	// 자바빈 규약을 따르는 클래스에 생성자를 명시적으로 추가했을 때는 디폴트 생성자도 함께 정의해줘야 함!
 	public User() {}
 	
@@ -40,12 +52,14 @@ public class User {
 		return name;
 	}
 	public void setName(String name) {
+		if (!Objects.equals(this.name, name)) changedFields.add(UserField.NAME);
 		this.name = name;
 	}
 	public String getPassword() {
 		return password;
 	}
 	public void setPassword(String password) {
+		if (!Objects.equals(this.password, password)) changedFields.add(UserField.PASSWORD);
 		this.password = password;
 	}
 
@@ -54,6 +68,7 @@ public class User {
 	}
 
 	public void setLevel(Level level) {
+		if (!Objects.equals(this.level, level)) changedFields.add(UserField.LEVEL);
 		this.level = level;
 	}
 
@@ -62,6 +77,7 @@ public class User {
 	}
 
 	public void setLogin(int login) {
+		if (this.login != login) changedFields.add(UserField.LOGIN);
 		this.login = login;
 	}
 
@@ -70,6 +86,7 @@ public class User {
 	}
 
 	public void setRecommend(int recommend) {
+		if (this.recommend != recommend) changedFields.add(UserField.RECOMMEND);
 		this.recommend = recommend;
 	}
 	
@@ -78,16 +95,52 @@ public class User {
 	}
 
 	public void setEmail(String email) {
+		if (!Objects.equals(this.email, email)) changedFields.add(UserField.EMAIL);
 		this.email = email;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public long getUpdatedAt() {
+		return updatedAt;
+	}
+
+	public void setUpdatedAt(long updatedAt) {
+		this.updatedAt = updatedAt;
+	}
+
 	public void upgradeLevel() {
 		Level nextLevel = this.level.nextLevel();
 		if (nextLevel == null) {
 			throw new IllegalArgumentException(this.level + "은 업그레이드가 불가능합니다!");
 		} else {
 			this.level = nextLevel;
+			changedFields.add(UserField.LEVEL);
 		}
 	}
 
+	public Set<UserField> getChangedFields() {
+		return EnumSet.copyOf(changedFields);
+	}
+
+	public boolean isChanged() {
+		return !changedFields.isEmpty();
+	}
+
+	// 다른 오브젝트에서 옮겨온 변경 표시를 더한다. 수정을 복사해 두었다가 쓰는 DAO 데코레이터가 사용한다.
+	public void markChanged(Set<UserField> fields) {
+		changedFields.addAll(fields);
+	}
+
+	// 지금 상태가 DB에 저장된 상태와 같다고 표시한다. DAO가 읽어오거나 저장한 뒤에 호출한다.
+	public void clearChanges() {
+		changedFields.clear();
+	}
+
 }
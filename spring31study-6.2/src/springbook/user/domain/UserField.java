@@ -0,0 +1,8 @@
+package springbook.user.domain;
+
+/**
+ * 변경 추적에 사용하는 User의 필드. (id는 바뀌지 않으므로 없다)
+ */
+public enum UserField {
+	NAME, PASSWORD, EMAIL, LEVEL, LOGIN, RECOMMEND
+}
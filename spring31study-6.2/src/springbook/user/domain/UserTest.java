@@ -3,6 +3,8 @@ package springbook.user.domain;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.util.EnumSet;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -36,4 +38,25 @@ public class UserTest {
 		}
 	}
 
+	@Test
+	public void levelValueOf() {
+		for(Level level : Level.values()) {
+			assertThat(Level.valueOf(level.intValue()), is(level));
+		}
+	}
+
+	@Test
+	public void trackChangedFields() {
+		assertThat(user.isChanged(), is(true));	// 새로 만든 User는 모든 필드가 바뀐 것으로 본다.
+		
+		user = new User("gyumee", "박성철", "springno1", "user1@ksug.org", Level.BASIC, 49, 0);
+		user.clearChanges();
+		user.setName("박성철");	// 같은 값은 변경이 아니다.
+		assertThat(user.isChanged(), is(false));
+		
+		user.upgradeLevel();
+		user.setLogin(50);
+		assertThat(user.getChangedFields(), is((Object) EnumSet.of(UserField.LEVEL, UserField.LOGIN)));
+	}
+
 }
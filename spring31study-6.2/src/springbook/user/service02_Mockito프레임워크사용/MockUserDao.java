@@ -1,8 +1,12 @@
 package springbook.user.service02_Mockito프레임워크사용;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
+import springbook.user.dao.CountMode;
+import springbook.user.dao.UserCallback;
 import springbook.user.dao.UserDao;
 import springbook.user.domain.User;
 
@@ -23,13 +27,35 @@ public class MockUserDao implements UserDao {
 		return this.users;
 	}
 	
+	public void forEachUser(UserCallback callback) {
+		for (User user : this.users) callback.doWithUser(user);
+	}
+	
 	public void update(User user) {
 		this.updated.add(user);
 	}
 	
+	public void updateAll(List<User> users) {
+		this.updated.addAll(users);
+	}
+	
 	// 실수로 사용될 위험을 방지하기 위해 "지원하지 않는 기능"이라는 예외를 발생시킴.
 	public void add(User user) { throw new UnsupportedOperationException();	}
 	public User get(String id) { throw new UnsupportedOperationException();	}
+	public Map<String, User> getAll(Collection<String> ids) { throw new UnsupportedOperationException(); }
 	public void deleteAll() { throw new UnsupportedOperationException(); }
+	public int deleteAll(Collection<String> ids) { throw new UnsupportedOperationException(); }
 	public int getCount() { throw new UnsupportedOperationException(); }
+	public int getCount(CountMode mode) { throw new UnsupportedOperationException(); }
+	public void addAll(Collection<User> users) { throw new UnsupportedOperationException(); }
+	public List<User> getPage(String afterId, int limit) { throw new UnsupportedOperationException(); }
+	public List<User> getUpgradeCandidates(int minLoginForSilver, int minRecommendForGold) { throw new UnsupportedOperationException(); }
+	public List<User> upgradeLevels(String runId, int minLoginForSilver, int minRecommendForGold) { throw new UnsupportedOperationException(); }
+	public List<User> getChangedSince(long watermark, int limit) { throw new UnsupportedOperationException(); }
+	public void parallelScan(int partitions, UserCallback callback) { throw new UnsupportedOperationException(); }
+	public void upsert(User user) { throw new UnsupportedOperationException(); }
+	public boolean addIfAbsent(User user) { throw new UnsupportedOperationException(); }
+	public void upsertAll(Collection<User> users) { throw new UnsupportedOperationException(); }
+	public void copyAll(Collection<User> users) { throw new UnsupportedOperationException(); }
+	public int addAllIfAbsent(Collection<User> users) { throw new UnsupportedOperationException(); }
 }
@@ -1,6 +1,7 @@
 package springbook.user.service02_Mockito프레임워크사용;
 
 import java.util.List;
+import java.util.UUID;
 
 import org.springframework.mail.MailSender;
 import org.springframework.mail.SimpleMailMessage;
@@ -16,6 +17,16 @@ public class UserServiceImpl implements UserService {
 
 	private UserDao userDao;
 	private MailSender mailSender;
+	private int upgradeBatchSize = 1000;	// 한 번에 모아서 DB에 반영할 업그레이드 사용자 수
+	private boolean bulkUpgrade = false;	// true면 레벨마다 update문 하나로 DB 안에서 업그레이드한다.
+	
+	public void setUpgradeBatchSize(int upgradeBatchSize) {
+		this.upgradeBatchSize = upgradeBatchSize;
+	}
+	
+	public void setBulkUpgrade(boolean bulkUpgrade) {
+		this.bulkUpgrade = bulkUpgrade;
+	}
 	
 	public void setMailSender(MailSender mailSender) {
 		this.mailSender = mailSender;
@@ -26,18 +37,46 @@ public class UserServiceImpl implements UserService {
 	}
 	
 	public void upgradeLevels() {
-		List<User> users = userDao.getAll();
-		for (User user : users) {
-			if (canUpgradeLevel(user)) {
+		if (this.bulkUpgrade) {
+			upgradeLevelsInBulk();
+			return;
+		}
+		
+		// 레벨별 업그레이드 조건을 DB로 보내서 조건을 만족하는 사용자만 읽어온다.
+		List<User> candidates = userDao.getUpgradeCandidates(MIN_LOGCOUNT_FOR_SILVER, MIN_RECOMMEND_FOR_GOLD);
+		
+		// upgradeBatchSize개씩 업그레이드하고 한 번에 반영한다.
+		for (int from = 0; from < candidates.size(); from += this.upgradeBatchSize) {
+			List<User> upgraded = candidates.subList(from,
+					Math.min(from + this.upgradeBatchSize, candidates.size()));
+			for (User user : upgraded) {
 				upgradeLevel(user);
 			}
+			flushUpgraded(upgraded);
+		}
+	}
+
+	// 전체 재계산용. 사용자를 한 명씩 읽고 쓰지 않고 DB가 레벨별로 한 번에 업그레이드한다.
+	// 사용자별 upgradeLevel()은 거치지 않으며, 업그레이드된 사용자는 실행 id로 다시 읽어와서 메일을 보낸다.
+	private void upgradeLevelsInBulk() {
+		String runId = UUID.randomUUID().toString();
+		List<User> upgraded = userDao.upgradeLevels(runId, MIN_LOGCOUNT_FOR_SILVER, MIN_RECOMMEND_FOR_GOLD);
+		for (User user : upgraded) {
+			sendUpgradeEmail(user);
 		}
 	}
 
 	protected void upgradeLevel(User user) {
 		user.upgradeLevel();
-		userDao.update(user);
-		sendUpgradeEmail(user);
+	}
+
+	// 모아둔 업그레이드 사용자를 한 번의 배치로 DB에 반영한 뒤 메일을 보낸다.
+	private void flushUpgraded(List<User> upgraded) {
+		if (upgraded.isEmpty()) return;
+		userDao.updateAll(upgraded);
+		for (User user : upgraded) {
+			sendUpgradeEmail(user);
+		}
 	}
 
 	private void sendUpgradeEmail(User user) {
@@ -51,16 +90,6 @@ public class UserServiceImpl implements UserService {
 		this.mailSender.send(mailMessage);
 	}
 
-	private boolean canUpgradeLevel(User user) {
-		Level currentLevel = user.getLevel();
-		switch(currentLevel) {
-			case BASIC: return (user.getLogin() >= MIN_LOGCOUNT_FOR_SILVER);
-			case SILVER: return (user.getRecommend() >= MIN_RECOMMEND_FOR_GOLD);
-			case GOLD: return false;
-			default: throw new IllegalArgumentException("Unknown Level:"+currentLevel);
-		}
-	}
-
 	public void add(User user) {
 		if (user.getLevel() == null) user.setLevel(Level.BASIC);
 		userDao.add(user);
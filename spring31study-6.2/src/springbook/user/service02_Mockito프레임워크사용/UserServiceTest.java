@@ -5,7 +5,11 @@ import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -75,7 +79,7 @@ public class UserServiceTest {
 		UserServiceImpl userServiceImpl = new UserServiceImpl();
 		
 		UserDao mockUserDao = mock(UserDao.class);
-		when(mockUserDao.getAll()).thenReturn(this.users);
+		stubUpgradeScan(mockUserDao);
 		userServiceImpl.setUserDao(mockUserDao);
 		
 		MailSender mockMailSender = mock(MailSender.class);
@@ -83,10 +87,9 @@ public class UserServiceTest {
 		
 		userServiceImpl.upgradeLevels();
 		
-		verify(mockUserDao, times(2)).update(any(User.class));
-		verify(mockUserDao).update(users.get(1));
+		verify(mockUserDao, never()).update(any(User.class));
+		verify(mockUserDao).updateAll(Arrays.asList(users.get(1), users.get(3)));
 		assertThat(users.get(1).getLevel(), is(Level.SILVER));
-		verify(mockUserDao).update(users.get(3));
 		assertThat(users.get(3).getLevel(), is(Level.GOLD));
 		
 		ArgumentCaptor<SimpleMailMessage> mailMessageArg = 
@@ -97,6 +100,52 @@ public class UserServiceTest {
 		assertThat(mailMessages.get(1).getTo()[0], is(users.get(3).getEmail()));
 	}
 
+	@Test
+	public void upgradeLevelsInBatches() {
+		UserServiceImpl userServiceImpl = new UserServiceImpl();
+		userServiceImpl.setUpgradeBatchSize(1);
+		
+		UserDao mockUserDao = mock(UserDao.class);
+		stubUpgradeScan(mockUserDao);
+		userServiceImpl.setUserDao(mockUserDao);
+		userServiceImpl.setMailSender(mock(MailSender.class));
+		
+		userServiceImpl.upgradeLevels();
+		
+		verify(mockUserDao, times(2)).updateAll(anyListOf(User.class));
+		verify(mockUserDao).updateAll(Arrays.asList(users.get(1)));
+		verify(mockUserDao).updateAll(Arrays.asList(users.get(3)));
+	}
+
+	@Test
+	public void upgradeLevelsInBulk() {
+		UserServiceImpl userServiceImpl = new UserServiceImpl();
+		userServiceImpl.setBulkUpgrade(true);
+		
+		UserDao mockUserDao = mock(UserDao.class);
+		User silver = new User("joytouch", "강명성", "p2", "user2@ksug.org", Level.SILVER, MIN_LOGCOUNT_FOR_SILVER, 0);
+		when(mockUserDao.upgradeLevels(anyString(), eq(MIN_LOGCOUNT_FOR_SILVER), eq(MIN_RECOMMEND_FOR_GOLD)))
+			.thenReturn(Arrays.asList(silver));
+		userServiceImpl.setUserDao(mockUserDao);
+		
+		MailSender mockMailSender = mock(MailSender.class);
+		userServiceImpl.setMailSender(mockMailSender);
+		
+		userServiceImpl.upgradeLevels();
+		
+		verify(mockUserDao, never()).updateAll(anyListOf(User.class));
+		ArgumentCaptor<SimpleMailMessage> mailMessageArg = 
+				ArgumentCaptor.forClass(SimpleMailMessage.class);
+		verify(mockMailSender).send(mailMessageArg.capture());
+		assertThat(mailMessageArg.getValue().getTo()[0], is(silver.getEmail()));
+	}
+
+	// 업그레이드 조건은 DB가 판단하므로(UserDaoTest.getUpgradeCandidates), 조건을 만족하는 사용자만 돌려준다.
+	private void stubUpgradeScan(UserDao mockUserDao) {
+		when(mockUserDao.getUpgradeCandidates(MIN_LOGCOUNT_FOR_SILVER, MIN_RECOMMEND_FOR_GOLD))
+			.thenReturn(Arrays.asList(users.get(1), users.get(3)));
+	}
+
 	private void checkLevelUpgraded(User user, boolean upgraded) {
 		User userUpdate = userDao.get(user.getId());
 		if (upgraded) {
@@ -130,6 +179,8 @@ public class UserServiceTest {
 		TestUserService testUserService = new TestUserService(users.get(3).getId());
 		testUserService.setUserDao(this.userDao);
 		testUserService.setMailSender(this.mailSender);
+		// users.get(1)이 먼저 한 배치로 DB에 반영된 뒤에 users.get(3)에서 실패해야 롤백을 확인할 수 있다.
+		testUserService.setUpgradeBatchSize(1);
 		
 		UserServiceTx txUserService = new UserServiceTx();
 		txUserService.setTransactionManager(this.transactionManager);